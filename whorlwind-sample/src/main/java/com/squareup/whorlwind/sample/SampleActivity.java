@@ -139,6 +139,8 @@ public class SampleActivity extends Activity {
             case NEEDS_AUTH:
               return SwirlView.State.ON;
             case UNRECOVERABLE_ERROR:
+            case TIMED_OUT:
+            case CORRUPT:
             case AUTHORIZATION_ERROR:
             case RECOVERABLE_ERROR:
               return SwirlView.State.ERROR;
@@ -170,6 +172,10 @@ public class SampleActivity extends Activity {
               return "Please try again";
             case UNRECOVERABLE_ERROR:
               return "Something went wrong";
+            case TIMED_OUT:
+              return "Timed out";
+            case CORRUPT:
+              return "Stored value was corrupt";
             case READY:
               return "";
             default:
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import io.reactivex.Completable;
+import io.reactivex.Maybe;
+import io.reactivex.Single;
+import java.util.Set;
+import okio.ByteString;
+
+/**
+ * A non-blocking variant of {@link Storage}. Whorlwind never holds the lock shared by every read
+ * and write of a key alias while waiting for one of these streams, so slow persistence doesn't
+ * hold up operations on other names.
+ *
+ * <p>Writes are subscribed to while holding a lock for the written name, so that writes of one
+ * name reach the storage in order. {@link Whorlwind#compareAndWrite compareAndWrite()} and the
+ * removal of expired, stale or corrupt values block on {@link #get}, {@link #put} and
+ * {@link #remove} while holding that lock, and reads block on {@link #get}. Streams which complete
+ * on another thread must not wait for a Whorlwind operation on the same name.
+ *
+ * @see BlockingAsyncStorage
+ */
+public interface AsyncStorage {
+  @CheckResult Completable clear();
+  @CheckResult Completable remove(@NonNull String name);
+  @CheckResult Completable put(@NonNull String name, @NonNull ByteString value);
+  /** Completes without a value if {@code name} is not present. */
+  @CheckResult Maybe<ByteString> get(@NonNull String name);
+  @CheckResult Single<Set<String>> names();
+  /** Completes once every write which completed before subscription has been persisted. */
+  @CheckResult Completable flush();
+}
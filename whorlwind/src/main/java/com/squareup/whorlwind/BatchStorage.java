@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.NonNull;
+import java.util.Map;
+import okio.ByteString;
+
+/**
+ * A {@link Storage} which can write many values at once for less than writing them one at a time,
+ * such as in a single transaction. {@link StorageArchive} and {@link StorageMigration} write in
+ * batches when their storage implements this. A storage which wraps another should implement it
+ * by forwarding, so that batches reach the underlying storage.
+ */
+public interface BatchStorage extends Storage {
+  /** Writes all of {@code values}, replacing any stored values of the same names. */
+  void putAll(@NonNull Map<String, ByteString> values);
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import io.reactivex.Completable;
+import io.reactivex.Maybe;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.functions.Action;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import okio.ByteString;
+
+/** Adapts a blocking {@link Storage} to {@link AsyncStorage}. */
+public final class BlockingAsyncStorage implements AsyncStorage {
+  private final Storage storage;
+  @Nullable private final Scheduler scheduler;
+
+  /** Calls into {@code storage} on whichever thread subscribes. */
+  public BlockingAsyncStorage(@NonNull Storage storage) {
+    this(storage, null);
+  }
+
+  /** Calls into {@code storage} on {@code scheduler}. */
+  public BlockingAsyncStorage(@NonNull Storage storage, @Nullable Scheduler scheduler) {
+    if (storage == null) {
+      throw new IllegalArgumentException("storage == null");
+    }
+    this.storage = storage;
+    this.scheduler = scheduler;
+  }
+
+  @CheckResult @Override public Completable clear() {
+    return schedule(Completable.fromAction(new Action() {
+      @Override public void run() {
+        storage.clear();
+      }
+    }));
+  }
+
+  @CheckResult @Override public Completable remove(@NonNull final String name) {
+    return schedule(Completable.fromAction(new Action() {
+      @Override public void run() {
+        storage.remove(name);
+      }
+    }));
+  }
+
+  @CheckResult @Override
+  public Completable put(@NonNull final String name, @NonNull final ByteString value) {
+    return schedule(Completable.fromAction(new Action() {
+      @Override public void run() {
+        storage.put(name, value);
+      }
+    }));
+  }
+
+  @CheckResult @Override public Maybe<ByteString> get(@NonNull final String name) {
+    Maybe<ByteString> get = Maybe.fromCallable(new Callable<ByteString>() {
+      @Override public ByteString call() {
+        return storage.get(name);
+      }
+    });
+    return scheduler != null ? get.subscribeOn(scheduler) : get;
+  }
+
+  @CheckResult @Override public Single<Set<String>> names() {
+    Single<Set<String>> names = Single.fromCallable(new Callable<Set<String>>() {
+      @Override public Set<String> call() {
+        return storage.names();
+      }
+    });
+    return scheduler != null ? names.subscribeOn(scheduler) : names;
+  }
+
+  /** Flushes the adapted storage if it implements {@link Flushable}. */
+  @CheckResult @Override public Completable flush() {
+    if (!(storage instanceof Flushable)) {
+      return Completable.complete();
+    }
+    return schedule(Completable.fromAction(new Action() {
+      @Override public void run() throws IOException {
+        ((Flushable) storage).flush();
+      }
+    }));
+  }
+
+  /**
+   * Returns the adapted storage if it is called on the subscribing thread, so that callers which
+   * would block on the result anyway can skip the reactive wrapping.
+   */
+  @Nullable Storage direct() {
+    return scheduler == null ? storage : null;
+  }
+
+  private Completable schedule(Completable completable) {
+    return scheduler != null ? completable.subscribeOn(scheduler) : completable;
+  }
+}
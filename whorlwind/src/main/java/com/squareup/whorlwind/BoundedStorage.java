@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import okio.ByteString;
+
+/**
+ * A {@link Storage} which keeps the values in another storage within a number of entries and a
+ * total size by removing the least recently used values. Use it for values which can be fetched
+ * again, such as session tokens, so that they don't pile up and make every write to the
+ * underlying storage more expensive.
+ *
+ * <p>Recency is only tracked in memory, and only writes and reads of values by the app count as
+ * uses. Whorlwind's purges, {@link StorageArchive} and {@link StorageMigration} leave it as it is.
+ * The first time this is used, the size of every stored value is loaded from the underlying
+ * storage and the order of {@link Storage#names()} is taken as their recency. Every write must go
+ * through this instance for the limits to hold. A single value larger than the total size is kept
+ * on its own.
+ */
+public final class BoundedStorage implements PeekableStorage, BatchStorage, Flushable {
+  private final Storage delegate;
+  private final int maxEntries;
+  private final long maxBytes;
+  /** The size of every stored value, least recently used first. Null until loaded. */
+  @Nullable private LinkedHashMap<String, Integer> sizes;
+  private long bytes;
+  private int evictionCount;
+
+  /**
+   * @param maxEntries The maximum number of values to keep.
+   * @param maxBytes The maximum total size in bytes of the values to keep.
+   */
+  public BoundedStorage(@NonNull Storage delegate, int maxEntries, long maxBytes) {
+    if (delegate == null) {
+      throw new IllegalArgumentException("delegate == null");
+    }
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries <= 0: " + maxEntries);
+    }
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes <= 0: " + maxBytes);
+    }
+    this.delegate = delegate;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  @Override public synchronized void clear() {
+    delegate.clear();
+    sizes = new LinkedHashMap<>(16, 0.75f, true);
+    bytes = 0;
+  }
+
+  @Override public synchronized void remove(@NonNull String name) {
+    delegate.remove(name);
+    Integer size = sizes().remove(name);
+    if (size != null) {
+      bytes -= size;
+    }
+  }
+
+  @Override public synchronized void put(@NonNull String name, @NonNull ByteString value) {
+    delegate.put(name, value);
+    Integer previous = sizes().put(name, value.size());
+    bytes += value.size() - (previous != null ? previous : 0);
+    trim(name);
+  }
+
+  /**
+   * Writes all of {@code values} as a single write if the underlying storage supports it, then
+   * removes the least recently used values, other than the last of {@code values}, until within
+   * the limits.
+   */
+  @Override public synchronized void putAll(@NonNull Map<String, ByteString> values) {
+    if (values.isEmpty()) {
+      return;
+    }
+    Storages.putAll(delegate, values);
+    Map<String, Integer> sizes = sizes();
+    String last = null;
+    for (Map.Entry<String, ByteString> entry : values.entrySet()) {
+      Integer previous = sizes.put(entry.getKey(), entry.getValue().size());
+      bytes += entry.getValue().size() - (previous != null ? previous : 0);
+      last = entry.getKey();
+    }
+    trim(last);
+  }
+
+  @CheckResult @Override public ByteString get(@NonNull String name) {
+    // Only recency is updated under the lock, so reads don't wait for each other's I/O.
+    ByteString value = delegate.get(name);
+    if (value != null) {
+      synchronized (this) {
+        sizes().get(name);
+      }
+    }
+    return value;
+  }
+
+  @CheckResult @Override public ByteString peek(@NonNull String name) {
+    return Storages.peek(delegate, name);
+  }
+
+  @CheckResult @Override public Set<String> names() {
+    return delegate.names();
+  }
+
+  /** Flushes the underlying storage if it is {@link Flushable}. */
+  @Override public void flush() throws IOException {
+    if (delegate instanceof Flushable) {
+      ((Flushable) delegate).flush();
+    }
+  }
+
+  /** Returns the number of values which were removed to stay within the limits. */
+  public synchronized int evictionCount() {
+    return evictionCount;
+  }
+
+  /** Returns the number of stored values. */
+  public synchronized int entryCount() {
+    return sizes().size();
+  }
+
+  /** Returns the total size in bytes of the stored values. */
+  public synchronized long byteCount() {
+    sizes();
+    return bytes;
+  }
+
+  /** Removes the least recently used values, other than {@code keep}, until within the limits. */
+  private void trim(String keep) {
+    Map<String, Integer> sizes = sizes();
+    Iterator<Map.Entry<String, Integer>> iterator = sizes.entrySet().iterator();
+    while ((sizes.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+      Map.Entry<String, Integer> eldest = iterator.next();
+      if (eldest.getKey().equals(keep)) {
+        continue;
+      }
+      delegate.remove(eldest.getKey());
+      bytes -= eldest.getValue();
+      iterator.remove();
+      evictionCount++;
+    }
+  }
+
+  private Map<String, Integer> sizes() {
+    if (sizes == null) {
+      LinkedHashMap<String, Integer> sizes = new LinkedHashMap<>(16, 0.75f, true);
+      long bytes = 0;
+      for (String name : delegate.names()) {
+        ByteString value = delegate.get(name);
+        if (value != null) {
+          sizes.put(name, value.size());
+          bytes += value.size();
+        }
+      }
+      this.sizes = sizes;
+      this.bytes = bytes;
+    }
+    return sizes;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import android.util.LruCache;
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import okio.ByteString;
+
+/**
+ * A {@link Storage} which keeps recently used values from another storage in memory, so that
+ * values which are read often don't cost a lookup in the underlying storage every time. Values are
+ * ciphertext, so caching them doesn't expose anything which isn't already on disk.
+ *
+ * <p>Writes go through to the underlying storage before the cache is updated. Every write must go
+ * through this instance for the cache to stay consistent.
+ *
+ * <p>Values in memory also count towards the process-wide {@link MemoryBudget}, which may drop
+ * them before {@code maxSize} is reached.
+ */
+public final class CachingStorage implements PeekableStorage, BatchStorage, Flushable {
+  private final Storage delegate;
+  private final LruCache<String, ByteString> cache;
+  /** Guards writes and {@link #generation}. */
+  private final Object writeLock = new Object();
+  /** Incremented by every write so that a slow read can't cache a value which was replaced. */
+  private long generation;
+  /** Registered with the budget. Only reachable through this instance. */
+  private final MemoryBudget.Trimmable trimmable = new MemoryBudget.Trimmable() {
+    @Override public void trimToSize(long maxBytes) {
+      if (maxBytes == 0) {
+        cache.evictAll();
+        return;
+      }
+      // LruCache.trimToSize() isn't public before API 17. The snapshot is eldest first.
+      for (String name : cache.snapshot().keySet()) {
+        if (cache.size() <= maxBytes) {
+          break;
+        }
+        cache.remove(name);
+      }
+    }
+  };
+  /** Told about every value entering and leaving {@link #cache}. */
+  private final MemoryBudget.Registration registration;
+
+  /**
+   * @param maxSize The maximum total size in bytes of the values to keep in memory.
+   */
+  public CachingStorage(@NonNull Storage delegate, int maxSize) {
+    if (delegate == null) {
+      throw new IllegalArgumentException("delegate == null");
+    }
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+    }
+    this.delegate = delegate;
+    this.cache = new LruCache<String, ByteString>(maxSize) {
+      @Override protected int sizeOf(String name, ByteString value) {
+        return value.size();
+      }
+
+      @Override protected void entryRemoved(boolean evicted, String name, ByteString oldValue,
+          ByteString newValue) {
+        registration.adjust(-oldValue.size());
+      }
+    };
+    registration = MemoryBudget.register(trimmable, true);
+  }
+
+  @Override public void clear() {
+    synchronized (writeLock) {
+      delegate.clear();
+      cache.evictAll();
+      generation++;
+    }
+  }
+
+  @Override public void remove(@NonNull String name) {
+    synchronized (writeLock) {
+      delegate.remove(name);
+      cache.remove(name);
+      generation++;
+    }
+  }
+
+  @Override public void put(@NonNull String name, @NonNull ByteString value) {
+    synchronized (writeLock) {
+      delegate.put(name, value);
+      cache(name, value);
+      generation++;
+    }
+    MemoryBudget.enforce();
+  }
+
+  /** Writes all of {@code values} as a single write if the underlying storage supports it. */
+  @Override public void putAll(@NonNull Map<String, ByteString> values) {
+    synchronized (writeLock) {
+      Storages.putAll(delegate, values);
+      for (Map.Entry<String, ByteString> entry : values.entrySet()) {
+        cache(entry.getKey(), entry.getValue());
+      }
+      generation++;
+    }
+    MemoryBudget.enforce();
+  }
+
+  @CheckResult @Override public ByteString get(@NonNull String name) {
+    ByteString value = cache.get(name);
+    if (value != null) {
+      return value;
+    }
+
+    long generation;
+    synchronized (writeLock) {
+      generation = this.generation;
+    }
+    value = delegate.get(name);
+    if (value != null) {
+      synchronized (writeLock) {
+        if (generation == this.generation) {
+          cache(name, value);
+        }
+      }
+      MemoryBudget.enforce();
+    }
+    return value;
+  }
+
+  /**
+   * Reads from the underlying storage, so that maintenance neither reorders nor fills the cache
+   * nor counts as a use of the value there.
+   */
+  @CheckResult @Override public ByteString peek(@NonNull String name) {
+    return Storages.peek(delegate, name);
+  }
+
+  @CheckResult @Override public Set<String> names() {
+    return delegate.names();
+  }
+
+  /** Flushes the underlying storage if it is {@link Flushable}. */
+  @Override public void flush() throws IOException {
+    if (delegate instanceof Flushable) {
+      ((Flushable) delegate).flush();
+    }
+  }
+
+  /** Returns the number of reads which were served from memory. */
+  public int hitCount() {
+    return cache.hitCount();
+  }
+
+  /** Returns the number of reads which went to the underlying storage. */
+  public int missCount() {
+    return cache.missCount();
+  }
+
+  /** Returns the number of values which were dropped from memory to stay within the size. */
+  public int evictionCount() {
+    return cache.evictionCount();
+  }
+
+  /** Returns the total size in bytes of the values currently in memory. */
+  public int size() {
+    return cache.size();
+  }
+
+  /** Returns the maximum total size in bytes of the values kept in memory. */
+  public int maxSize() {
+    return cache.maxSize();
+  }
+
+  /** Keeps {@code value} in memory. Its removal is reported by the cache. */
+  private void cache(String name, ByteString value) {
+    registration.adjust(value.size());
+    cache.put(name, value);
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.PublicKey;
+import java.util.zip.CRC32;
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * The header which precedes every stored ciphertext, so that the format of a value can change
+ * without clearing everything which was stored in an older one.
+ *
+ * <pre>
+ * magic      2 bytes  "Wh"
+ * version    1 byte   {@link #VERSION}
+ * algorithm  1 byte   How the payload was encrypted, such as {@link #ALGORITHM_RSA_ECB_PKCS1}.
+ * flags      1 byte   Such as {@link #FLAG_PADDED} and {@link #FLAG_AT_REST}.
+ * key id     4 bytes  Identifies the key pair the payload was encrypted with. See {@link #keyId}.
+ * entry      8 bytes  Changes with every write of the name. Only present from version 2. See
+ *                     {@link #entryVersion}.
+ * expires    8 bytes  When the value expires, in milliseconds since the epoch. Only present if
+ *                     {@link #FLAG_EXPIRES} is set.
+ * checksum   4 bytes  CRC32 of the payload, so that a corrupt value is caught without the key.
+ *                     Only present if {@link #FLAG_CHECKSUM} is set.
+ * payload
+ * padding    1 byte   Only present if {@link #FLAG_PADDED} is set.
+ * </pre>
+ *
+ * <p>Values written before the header was introduced are a bare RSA block, which is always a
+ * multiple of 8 bytes long. A value with a header never is, which is what {@link #FLAG_PADDED} is
+ * for, so the two can't be mistaken for one another.
+ *
+ * <p>Reading a header only inspects bytes in place and never allocates.
+ */
+final class CiphertextHeader {
+  static final int SIZE = 17;
+  static final int VERSION = 2;
+  /** The size of a version 1 header, which has no entry version. */
+  private static final int SIZE_V1 = 9;
+
+  /**
+   * The entry version of a value written without one. Versions chosen for new writes are never
+   * this or {@link Whorlwind#NO_VERSION}.
+   */
+  static final long LEGACY_ENTRY_VERSION = 1;
+
+  /** A value without a header. The whole value is an RSA block. */
+  static final int ALGORITHM_LEGACY = 0;
+  static final int ALGORITHM_RSA_ECB_PKCS1 = 1;
+
+  /** A byte was appended to the payload so that the value isn't a multiple of 8 bytes long. */
+  static final int FLAG_PADDED = 1;
+  /** Encrypted with the key which doesn't require authentication for {@link Protection#AT_REST}. */
+  static final int FLAG_AT_REST = 2;
+  /** The header holds an expiry time, after which the value is treated as absent. */
+  static final int FLAG_EXPIRES = 4;
+  /** The header holds a checksum of the payload. Set by every write since it was introduced. */
+  static final int FLAG_CHECKSUM = 8;
+
+  private static final byte MAGIC_0 = 'W';
+  private static final byte MAGIC_1 = 'h';
+
+  /**
+   * Returns {@code payload} encrypted with {@code algorithm} prefixed with a header.
+   * {@link #FLAG_PADDED} is added to {@code flags} if needed, {@link #FLAG_EXPIRES} if
+   * {@code expiresAt} isn't 0 and {@link #FLAG_CHECKSUM} always.
+   */
+  static ByteString encode(int algorithm, int flags, int keyId, long entryVersion, long expiresAt,
+      byte[] payload) {
+    flags |= FLAG_CHECKSUM;
+    if (expiresAt != 0) {
+      flags |= FLAG_EXPIRES;
+    }
+    if ((size(VERSION, flags) + payload.length) % 8 == 0) {
+      flags |= FLAG_PADDED;
+    }
+    Buffer buffer = new Buffer() //
+        .writeByte(MAGIC_0)
+        .writeByte(MAGIC_1)
+        .writeByte(VERSION)
+        .writeByte(algorithm)
+        .writeByte(flags)
+        .writeInt(keyId)
+        .writeLong(entryVersion);
+    if (expiresAt != 0) {
+      buffer.writeLong(expiresAt);
+    }
+    buffer.writeInt(checksum(payload, 0, payload.length));
+    buffer.write(payload);
+    if ((flags & FLAG_PADDED) != 0) {
+      buffer.writeByte(0);
+    }
+    return buffer.readByteString();
+  }
+
+  static boolean hasHeader(ByteString value) {
+    return value.size() > SIZE_V1
+        && value.size() % 8 != 0
+        && value.getByte(0) == MAGIC_0
+        && value.getByte(1) == MAGIC_1
+        && value.size() > size(value.getByte(2) & 0xff, value.getByte(4) & 0xff);
+  }
+
+  private static int size(int version, int flags) {
+    if (version == 1) {
+      return SIZE_V1;
+    }
+    return SIZE
+        + ((flags & FLAG_EXPIRES) != 0 ? 8 : 0)
+        + ((flags & FLAG_CHECKSUM) != 0 ? 4 : 0);
+  }
+
+  /** Returns the format version, or 0 if {@code value} has no header. */
+  static int version(ByteString value) {
+    return hasHeader(value) ? value.getByte(2) & 0xff : 0;
+  }
+
+  static int algorithm(ByteString value) {
+    return hasHeader(value) ? value.getByte(3) & 0xff : ALGORITHM_LEGACY;
+  }
+
+  static int flags(ByteString value) {
+    return hasHeader(value) ? value.getByte(4) & 0xff : 0;
+  }
+
+  static boolean isAtRest(ByteString value) {
+    return (flags(value) & FLAG_AT_REST) != 0;
+  }
+
+  /** Returns the id of the key {@code value} was encrypted with, or 0 if it has no header. */
+  static int keyId(ByteString value) {
+    return hasHeader(value) ? readInt(value, 5) : 0;
+  }
+
+  /**
+   * Returns the entry version of {@code value}, or {@link #LEGACY_ENTRY_VERSION} if it was written
+   * before values had one.
+   */
+  static long entryVersion(ByteString value) {
+    if (version(value) < 2) {
+      return LEGACY_ENTRY_VERSION;
+    }
+    return readLong(value, SIZE_V1);
+  }
+
+  /** Returns when {@code value} expires, or 0 if it never does. */
+  static long expiresAt(ByteString value) {
+    if (version(value) < 2 || (flags(value) & FLAG_EXPIRES) == 0) {
+      return 0;
+    }
+    return readLong(value, SIZE);
+  }
+
+  /** Returns true if {@code value} expired at or before {@code now}. */
+  static boolean isExpired(ByteString value, long now) {
+    long expiresAt = expiresAt(value);
+    return expiresAt != 0 && expiresAt <= now;
+  }
+
+  /**
+   * Returns true if the structure of {@code value} is intact: its payload is a single block of
+   * {@code blockSize} bytes and matches its checksum, if it has one. This doesn't need the key and
+   * catches most corruption before the fingerprint reader is activated for a value which can't be
+   * decrypted. Pass 0 for {@code blockSize} if it isn't known.
+   */
+  static boolean isIntact(ByteString value, int blockSize) {
+    int length = payloadLength(value);
+    if (blockSize != 0 && length != blockSize) {
+      return false;
+    }
+    if (!hasHeader(value) || (flags(value) & FLAG_CHECKSUM) == 0) {
+      return true;
+    }
+    int offset = payloadOffset(value);
+    int expected = readInt(value, offset - 4);
+    return checksum(value, offset, length) == expected;
+  }
+
+  /**
+   * Returns the checksum of {@code length} bytes of {@code value} from {@code offset}. The bytes
+   * are fed to the checksum where they are, since copying them out would allocate for every read.
+   */
+  private static int checksum(ByteString value, final int offset, final int length) {
+    final CRC32 crc = new CRC32();
+    try {
+      // A ByteString writes the arrays it holds as they are, in one or more parts.
+      value.write(new OutputStream() {
+        private int position;
+
+        @Override public void write(int b) {
+          write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override public void write(byte[] bytes, int off, int len) {
+          int start = Math.max(offset, position);
+          int end = Math.min(offset + length, position + len);
+          if (start < end) {
+            crc.update(bytes, off + start - position, end - start);
+          }
+          position += len;
+        }
+      });
+    } catch (IOException e) {
+      throw new AssertionError(e); // Nothing above throws.
+    }
+    return (int) crc.getValue();
+  }
+
+  private static int checksum(byte[] bytes, int offset, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, offset, length);
+    return (int) crc.getValue();
+  }
+
+  private static int readInt(ByteString value, int offset) {
+    return (value.getByte(offset) & 0xff) << 24
+        | (value.getByte(offset + 1) & 0xff) << 16
+        | (value.getByte(offset + 2) & 0xff) << 8
+        | (value.getByte(offset + 3) & 0xff);
+  }
+
+  private static long readLong(ByteString value, int offset) {
+    return (readInt(value, offset) & 0xffffffffL) << 32
+        | (readInt(value, offset + 4) & 0xffffffffL);
+  }
+
+  static int payloadOffset(ByteString value) {
+    return hasHeader(value) ? size(version(value), flags(value)) : 0;
+  }
+
+  static int payloadLength(ByteString value) {
+    if (!hasHeader(value)) {
+      return value.size();
+    }
+    return value.size() - payloadOffset(value) - ((flags(value) & FLAG_PADDED) != 0 ? 1 : 0);
+  }
+
+  /**
+   * Returns an id for {@code publicKey}, taken from a hash of its encoding. A regenerated key pair
+   * has a different id.
+   */
+  static int keyId(PublicKey publicKey) {
+    ByteString hash = ByteString.of(publicKey.getEncoded()).sha256();
+    return (hash.getByte(0) & 0xff) << 24
+        | (hash.getByte(1) & 0xff) << 16
+        | (hash.getByte(2) & 0xff) << 8
+        | (hash.getByte(3) & 0xff);
+  }
+
+  private CiphertextHeader() {
+    throw new AssertionError("No instances.");
+  }
+}
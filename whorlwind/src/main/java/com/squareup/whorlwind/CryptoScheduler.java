@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.NonNull;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Lazily creates the process-wide scheduler returned from {@link Whorlwind#cryptoScheduler()}. */
+final class CryptoScheduler {
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private static Scheduler instance;
+
+  static synchronized Scheduler get() {
+    if (instance == null) {
+      instance = Schedulers.from(newExecutor(Runtime.getRuntime().availableProcessors()));
+    }
+    return instance;
+  }
+
+  /**
+   * Returns an executor with at most {@code threads} threads. Excess work is queued rather than
+   * spawning more threads, and idle threads are released so a quiet app holds none.
+   */
+  static ExecutorService newExecutor(int threads) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+              private final AtomicInteger count = new AtomicInteger();
+
+              @Override public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "whorlwind-crypto-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private CryptoScheduler() {
+    throw new AssertionError("No instances.");
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.NonNull;
+
+/** @see Whorlwind#readAll() */
+public final class Entry {
+  /** The name the value was stored under. */
+  @NonNull public final String name;
+  /** The state of reading this entry. See {@link Whorlwind#read(String)}. */
+  @NonNull public final ReadResult result;
+
+  private Entry(@NonNull String name, @NonNull ReadResult result) {
+    this.name = name;
+    this.result = result;
+  }
+
+  public static Entry create(@NonNull String name, @NonNull ReadResult result) {
+    if (name == null) {
+      throw new IllegalArgumentException("Name cannot be null.");
+    }
+    if (result == null) {
+      throw new IllegalArgumentException("ReadResult cannot be null.");
+    }
+    return new Entry(name, result);
+  }
+}
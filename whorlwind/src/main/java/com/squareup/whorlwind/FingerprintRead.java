@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.CancellationSignal;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import android.util.Log;
+import com.squareup.whorlwind.ReadResult.ReadState;
+import io.reactivex.Observable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Consumer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import okio.ByteString;
+
+@RequiresApi(Build.VERSION_CODES.M) //
+final class FingerprintRead {
+  private final FingerprintManager fingerprintManager;
+  private final String name;
+  @SuppressWarnings("WeakerAccess") final AtomicBoolean readerScanning;
+  final RealWhorlwind whorlwind;
+  /** Handed to the first read. Null if every read should prepare for itself. */
+  @Nullable private final AtomicReference<ReadPreparation> preparation;
+
+  FingerprintRead(FingerprintManager fingerprintManager, String name,
+      AtomicBoolean readerScanning, RealWhorlwind whorlwind,
+      @Nullable AtomicReference<ReadPreparation> preparation) {
+    this.fingerprintManager = fingerprintManager;
+    this.name = name;
+    this.readerScanning = readerScanning;
+    // TODO: Come up with a better way to access the required data without passing this in.
+    this.whorlwind = whorlwind;
+    this.preparation = preparation;
+  }
+
+  /** Discards the preparation if it hasn't been used, so that its cipher can be released. */
+  void release() {
+    if (preparation != null) {
+      preparation.set(null);
+    }
+  }
+
+  /** Starts a read which reports to {@code callback}. May be called more than once. */
+  Cancelable start(ReadCallback callback) {
+    ReadPreparation prepared;
+    try {
+      whorlwind.checkCanStoreSecurely();
+      // A cipher can only be used for one operation, so a preparation is never shared.
+      prepared = preparation != null ? preparation.getAndSet(null) : null;
+      if (prepared == null || !whorlwind.isCurrent(name, prepared)) {
+        prepared = whorlwind.prepare(name);
+      }
+    } catch (GeneralSecurityException | RuntimeException e) {
+      callback.onError(e);
+      return FINISHED;
+    }
+
+    if (prepared.corrupt) {
+      callback.onResult(ReadResult.create(ReadState.CORRUPT, -1, null, null));
+      return FINISHED;
+    }
+    if (prepared.encrypted == null) {
+      callback.onResult(ReadResult.create(ReadState.READY, -1, null, null));
+      return FINISHED;
+    }
+
+    if (CiphertextHeader.isAtRest(prepared.encrypted)) {
+      // The key doesn't require authentication, so there's no need for the reader.
+      byte[] decrypted;
+      try {
+        decrypted = RealWhorlwind.decrypt(prepared.cipher, prepared.encrypted);
+      } catch (GeneralSecurityException e) {
+        Log.i(Whorlwind.TAG, "Failed to decrypt.", e);
+        if (e instanceof BadPaddingException) {
+          whorlwind.removeIfUnchanged(name, prepared.encrypted);
+          callback.onResult(ReadResult.create(ReadState.CORRUPT, -1, null, null));
+        } else {
+          callback.onError(e);
+        }
+        return FINISHED;
+      }
+      callback.onResult(ReadResult.create(ReadState.READY, -1, null, release(decrypted),
+          CiphertextHeader.entryVersion(prepared.encrypted)));
+      return FINISHED;
+    }
+
+    callback.onResult(ReadResult.create(ReadState.NEEDS_AUTH, -1, null, null));
+
+    final Session session = new Session(callback, prepared.cipher, prepared.encrypted);
+    Observable<Boolean> sensorActive = whorlwind.sensorActive;
+    if (sensorActive == null) {
+      session.resume();
+    } else {
+      session.setActiveSubscription(sensorActive.distinctUntilChanged() //
+          .subscribe(new Consumer<Boolean>() {
+            @Override public void accept(Boolean active) {
+              if (active) {
+                session.resume();
+              } else {
+                session.pause();
+              }
+            }
+          }));
+    }
+    return session;
+  }
+
+  /**
+   * The reader's state for one read. The reader may be activated more than once if
+   * scanning is paused and resumed. Each activation gets its own {@link CancellationSignal} and
+   * callback, and callbacks from an activation which has since ended are ignored.
+   */
+  final class Session implements Cancelable {
+    private final ReadCallback callback;
+    private final Cipher cipher;
+    final ByteString encrypted;
+
+    /** The current activation, or null if the reader isn't active for this session. */
+    @Nullable private CancellationSignal activation;
+    /** Why the current activation was cancelled, or null if it wasn't. */
+    @Nullable private Stop stop;
+    private boolean resumed;
+    private boolean finished;
+    private long activatedAt;
+    @Nullable private Disposable timeout;
+    @Nullable private Disposable activeSubscription;
+    private volatile boolean cancelled;
+
+    Session(ReadCallback callback, Cipher cipher, ByteString encrypted) {
+      this.callback = callback;
+      this.cipher = cipher;
+      this.encrypted = encrypted;
+    }
+
+    synchronized void resume() {
+      resumed = true;
+      activate();
+    }
+
+    synchronized void pause() {
+      resumed = false;
+      stop(Stop.PAUSE);
+    }
+
+    @Override public synchronized void cancel() {
+      cancelled = true;
+      finish();
+      stop(Stop.DISPOSE);
+    }
+
+    synchronized void setActiveSubscription(Disposable activeSubscription) {
+      if (finished) {
+        activeSubscription.dispose();
+      } else {
+        this.activeSubscription = activeSubscription;
+      }
+    }
+
+    /** No more activations will happen. */
+    private void finish() {
+      finished = true;
+      if (activeSubscription != null) {
+        activeSubscription.dispose();
+      }
+    }
+
+    private void activate() {
+      if (finished || !resumed || activation != null) {
+        return; // A cancelled activation restarts once the framework confirms it has stopped.
+      }
+
+      // http://b.android.com/192513
+      if (!readerScanning.compareAndSet(false, true)) {
+        finish();
+        callback.onError(new IllegalStateException("Already attempting to read another value."));
+        return;
+      }
+
+      final CancellationSignal activation = new CancellationSignal();
+      this.activation = activation;
+      stop = null;
+      activatedAt = whorlwind.sensorScheduler.now(TimeUnit.MILLISECONDS);
+      whorlwind.sensorActivations.incrementAndGet();
+      scheduleTimeout(activation);
+
+      // A cipher which was never used can be handed to the reader again after a pause.
+      fingerprintManager.authenticate(new FingerprintManager.CryptoObject(cipher), activation, 0,
+          new FingerprintManager.AuthenticationCallback() {
+            @Override public void onAuthenticationError(int errorCode, CharSequence errString) {
+              onError(activation, errorCode, errString);
+            }
+
+            @Override public void onAuthenticationHelp(int helpCode, CharSequence helpString) {
+              onActivity(activation,
+                  ReadResult.create(ReadState.RECOVERABLE_ERROR, helpCode, helpString, null));
+            }
+
+            @Override
+            public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
+              onSucceeded(activation, result.getCryptoObject().getCipher());
+            }
+
+            @Override public void onAuthenticationFailed() {
+              onActivity(activation,
+                  ReadResult.create(ReadState.AUTHORIZATION_ERROR, -1, null, null));
+            }
+          }, whorlwind.callbackHandler);
+    }
+
+    private void stop(Stop stop) {
+      if (activation != null && this.stop == null) {
+        this.stop = stop;
+        activation.cancel();
+      }
+    }
+
+    private void scheduleTimeout(final CancellationSignal activation) {
+      if (timeout != null) {
+        timeout.dispose();
+      }
+      if (whorlwind.sensorTimeoutMs > 0) {
+        timeout = whorlwind.sensorScheduler.scheduleDirect(new Runnable() {
+          @Override public void run() {
+            synchronized (Session.this) {
+              if (activation == Session.this.activation) {
+                stop(Stop.TIMEOUT);
+              }
+            }
+          }
+        }, whorlwind.sensorTimeoutMs, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /** Ends the current activation. The reader stays claimed until the caller releases it. */
+    private void deactivate() {
+      activation = null;
+      if (timeout != null) {
+        timeout.dispose();
+        timeout = null;
+      }
+      long now = whorlwind.sensorScheduler.now(TimeUnit.MILLISECONDS);
+      whorlwind.sensorActiveMillis.addAndGet(now - activatedAt);
+    }
+
+    synchronized void onActivity(CancellationSignal activation, ReadResult result) {
+      if (activation != this.activation || stop != null) {
+        return;
+      }
+      scheduleTimeout(activation); // The user is interacting with the reader, so it isn't idle.
+      callback.onResult(result);
+    }
+
+    synchronized void onError(CancellationSignal activation, int errorCode,
+        CharSequence errString) {
+      if (activation != this.activation) {
+        return;
+      }
+      Stop stop = this.stop;
+      deactivate();
+
+      // Release the reader first so that downstream can start another read right away.
+      readerScanning.set(false);
+      if (stop == Stop.PAUSE) {
+        activate();
+        return;
+      }
+      finish();
+      if (stop == Stop.DISPOSE) {
+        return;
+      }
+      if (stop == Stop.TIMEOUT) {
+        callback.onResult(ReadResult.create(ReadState.TIMED_OUT, -1, null, null));
+      } else {
+        callback.onResult(
+            ReadResult.create(ReadState.UNRECOVERABLE_ERROR, errorCode, errString, null));
+      }
+    }
+
+    void onSucceeded(CancellationSignal activation, final Cipher cipher) {
+      synchronized (this) {
+        if (activation != this.activation) {
+          return;
+        }
+        deactivate();
+        finish();
+      }
+
+      // The callback thread is usually the main thread, so it shouldn't wait for the key store.
+      whorlwind.decryptScheduler().scheduleDirect(new Runnable() {
+        @Override public void run() {
+          decrypt(cipher);
+        }
+      });
+    }
+
+    void decrypt(Cipher cipher) {
+      if (cancelled) {
+        readerScanning.set(false);
+        return;
+      }
+
+      byte[] decrypted;
+      try {
+        decrypted = RealWhorlwind.decrypt(cipher, encrypted);
+      } catch (GeneralSecurityException e) {
+        Log.i(Whorlwind.TAG, "Failed to decrypt.", e);
+        readerScanning.set(false);
+        if (e instanceof BadPaddingException) {
+          // The block has the right length and checksum, so it was encrypted with another key or
+          // corrupted before it was stored. Only this value is lost.
+          whorlwind.removeIfUnchanged(name, encrypted);
+          report(ReadResult.create(ReadState.CORRUPT, -1, null, null));
+          return;
+        }
+        if (e instanceof IllegalBlockSizeException) {
+          // The length was checked before authenticating, so this is the key failing.
+          whorlwind.removeKey();
+        }
+        reportError(e);
+        return;
+      } catch (RuntimeException e) {
+        readerScanning.set(false); // Don't leave the reader claimed on the way out.
+        throw e;
+      }
+
+      readerScanning.set(false);
+      report(ReadResult.create(ReadState.READY, -1, null, release(decrypted),
+          CiphertextHeader.entryVersion(encrypted)));
+    }
+
+    /** Hands {@code result} back to the callback thread unless the read is cancelled first. */
+    private void report(final ReadResult result) {
+      whorlwind.postResult(new Runnable() {
+        @Override public void run() {
+          if (!cancelled) {
+            callback.onResult(result);
+          }
+        }
+      });
+    }
+
+    private void reportError(final Throwable error) {
+      whorlwind.postResult(new Runnable() {
+        @Override public void run() {
+          if (!cancelled) {
+            callback.onError(error);
+          }
+        }
+      });
+    }
+  }
+
+  /** Returns a copy of {@code decrypted} and zeroes it, so only the caller's copy remains. */
+  static ByteString release(byte[] decrypted) {
+    ByteString value = ByteString.of(decrypted);
+    Arrays.fill(decrypted, (byte) 0);
+    return value;
+  }
+
+  /** Returned for a read which finished before it was returned. */
+  static final Cancelable FINISHED = new Cancelable() {
+    @Override public void cancel() {
+    }
+  };
+
+  enum Stop {
+    PAUSE, TIMEOUT, DISPOSE
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import android.os.Build;
+import android.security.keystore.KeyProperties;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide JCA handles shared by every {@link RealWhorlwind}. Loading the key store and
+ * looking up providers is comparatively expensive, so it is done once no matter how many instances
+ * are created. State which belongs to a single key alias is handed out per alias.
+ */
+@RequiresApi(Build.VERSION_CODES.M)
+final class KeyStoreRegistry {
+  /** How many locks writes through one key alias are spread across. */
+  private static final int NAME_LOCK_STRIPES = 16;
+
+  private static KeyStoreRegistry instance;
+
+  static synchronized KeyStoreRegistry get() throws GeneralSecurityException, IOException {
+    if (instance == null) {
+      KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
+      keyStore.load(null); // Ensure the key store can be loaded before continuing.
+
+      KeyPairGenerator keyGenerator =
+          KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_RSA, "AndroidKeyStore");
+      KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+
+      RealWhorlwind.createCipher(); // If this doesn't throw, the cipher we need is available.
+
+      instance = new KeyStoreRegistry(keyStore, keyGenerator, keyFactory);
+    }
+    return instance;
+  }
+
+  final KeyStore keyStore;
+  /**
+   * Stateful between {@code initialize} and {@code generateKeyPair}. Callers must hold its monitor
+   * for the duration of both calls.
+   */
+  final KeyPairGenerator keyGenerator;
+  /** Not thread-safe. Callers must hold its monitor. */
+  final KeyFactory keyFactory;
+  private final Map<String, Object> aliasLocks = new HashMap<>();
+  private final Map<String, Object[]> nameLocks = new HashMap<>();
+
+  KeyStoreRegistry(KeyStore keyStore, KeyPairGenerator keyGenerator, KeyFactory keyFactory) {
+    this.keyStore = keyStore;
+    this.keyGenerator = keyGenerator;
+    this.keyFactory = keyFactory;
+  }
+
+  /**
+   * Returns the lock guarding the key pair and stored data for {@code keyAlias}. Instances created
+   * with the same alias share a lock so they cannot race each other when regenerating keys.
+   */
+  @NonNull Object lockFor(@NonNull String keyAlias) {
+    synchronized (aliasLocks) {
+      Object lock = aliasLocks.get(keyAlias);
+      if (lock == null) {
+        lock = new Object();
+        aliasLocks.put(keyAlias, lock);
+      }
+      return lock;
+    }
+  }
+
+  /**
+   * Returns the locks which writes through {@code keyAlias} hold while storing a value, picked by
+   * the value's name. Unlike {@link #lockFor}, writes of different names rarely share one.
+   */
+  @NonNull Object[] nameLocksFor(@NonNull String keyAlias) {
+    synchronized (nameLocks) {
+      Object[] locks = nameLocks.get(keyAlias);
+      if (locks == null) {
+        locks = new Object[NAME_LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+          locks[i] = new Object();
+        }
+        nameLocks.put(keyAlias, locks);
+      }
+      return locks;
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import androidx.annotation.CheckResult;
+import androidx.annotation.Nullable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory which Whorlwind's in-memory structures may retain across the whole process, such as
+ * the values kept by a {@link CachingStorage}, the name index of a {@link SharedPreferencesStorage}
+ * and the values of a {@link MultiProcessStorage}. Once their total exceeds {@link #maxBytes()},
+ * caches are shrunk in proportion to their size, sharing what the structures which can't be
+ * partially released leave of the budget. Those still count towards it, but are only dropped
+ * once memory is critically low.
+ *
+ * <p>Memory pressure is reported through {@link ComponentCallbacks2#onTrimMemory(int)}, which
+ * {@link Whorlwind.Builder#build()} registers for. Call {@link #install(Context)} if you only use
+ * a storage, or forward levels to {@link #trimMemory(int)} yourself.
+ *
+ * <p>Only ciphertext and names are ever retained. Decrypted values are handed to the caller and
+ * the library's own copies are zeroed.
+ */
+public final class MemoryBudget {
+  /** The default for {@link #maxBytes()}, which is 4 MiB. */
+  public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+  /** Guards {@link #caches} and {@link #installedIn}. */
+  private static final Object lock = new Object();
+  /** Weakly held so that registering doesn't keep a discarded storage alive. */
+  private static final List<Registration> caches = new ArrayList<>();
+  /**
+   * The total of every registration's bytes, kept up to date as caches change so that checking
+   * the budget doesn't need to visit them.
+   */
+  private static final AtomicLong retained = new AtomicLong();
+  private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+  @Nullable private static WeakReference<Context> installedIn;
+
+  private MemoryBudget() {
+    throw new AssertionError("No instances.");
+  }
+
+  /** Something in memory which can be released and rebuilt when it is needed again. */
+  interface Trimmable {
+    /**
+     * Releases memory until at most {@code maxBytes} are retained. Called without holding any of
+     * the budget's locks.
+     */
+    void trimToSize(long maxBytes);
+  }
+
+  /** A registered cache, which reports every change in the memory it retains through this. */
+  static final class Registration extends WeakReference<Trimmable> {
+    /** An estimate of the bytes the cache retains. Released once the cache is unreachable. */
+    final AtomicLong bytes = new AtomicLong();
+    /** False if the cache can't be partially released, and is only ever trimmed to 0. */
+    final boolean resizable;
+
+    Registration(Trimmable cache, boolean resizable) {
+      super(cache);
+      this.resizable = resizable;
+    }
+
+    /** Records that the cache retains {@code delta} more bytes, or fewer if it is negative. */
+    void adjust(long delta) {
+      if (delta != 0) {
+        bytes.addAndGet(delta);
+        retained.addAndGet(delta);
+      }
+    }
+  }
+
+  /**
+   * Trims Whorlwind's memory whenever the system reports memory pressure to {@code context}'s
+   * application. Only the first call for an application has any effect. If the application
+   * context isn't available yet, {@code context} is used if it is the application itself, and
+   * otherwise nothing is installed so that a later call can.
+   */
+  public static void install(Context context) {
+    Context application = context.getApplicationContext();
+    if (application == null) {
+      if (!(context instanceof Application)) {
+        return; // Would only forward to the missing application context.
+      }
+      application = context;
+    }
+    synchronized (lock) {
+      if (installedIn != null && installedIn.get() == application) {
+        return;
+      }
+      installedIn = new WeakReference<>(application);
+    }
+    application.registerComponentCallbacks(new ComponentCallbacks2() {
+      @Override public void onTrimMemory(int level) {
+        trimMemory(level);
+      }
+
+      @Override public void onConfigurationChanged(Configuration newConfig) {
+      }
+
+      @Override public void onLowMemory() {
+        trimToSize(0);
+      }
+    });
+  }
+
+  /** Sets the total bytes which Whorlwind may retain, trimming right away if it is exceeded. */
+  public static void setMaxBytes(long maxBytes) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes <= 0: " + maxBytes);
+    }
+    MemoryBudget.maxBytes = maxBytes;
+    enforce();
+  }
+
+  /** Returns the total bytes which Whorlwind may retain. */
+  @CheckResult public static long maxBytes() {
+    return maxBytes;
+  }
+
+  /** Returns an estimate of the total bytes Whorlwind currently retains. */
+  @CheckResult public static long retainedBytes() {
+    synchronized (lock) {
+      live();
+    }
+    return retained.get();
+  }
+
+  /**
+   * Releases memory for a level passed to {@link ComponentCallbacks2#onTrimMemory(int)}. Once the
+   * app is in the background or memory is critically low everything is dropped. While memory is
+   * running low, half of it is released.
+   */
+  public static void trimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      trimToSize(0);
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      trimToSize(retainedBytes() / 2);
+    }
+  }
+
+  /**
+   * Returns the registration through which {@code cache} reports what it retains. Pass false for
+   * {@code resizable} if it can only be released all at once.
+   */
+  static Registration register(Trimmable cache, boolean resizable) {
+    Registration registration = new Registration(cache, resizable);
+    synchronized (lock) {
+      caches.add(registration);
+    }
+    return registration;
+  }
+
+  /**
+   * Trims caches if the budget is exceeded. Callers must not hold a lock which a cache takes while
+   * being trimmed.
+   */
+  static void enforce() {
+    long maxBytes = MemoryBudget.maxBytes;
+    if (retained.get() > maxBytes) {
+      trimToSize(maxBytes);
+    }
+  }
+
+  /**
+   * Shrinks every resizable cache in proportion to its size until at most {@code maxBytes} are
+   * retained, or drops everything for 0. Caches which aren't resizable keep what they retain, so
+   * the others share what is left of {@code maxBytes}.
+   */
+  private static void trimToSize(long maxBytes) {
+    List<Trimmable> live;
+    long[] sizes;
+    boolean[] resizable;
+    long total = 0;
+    long fixed = 0;
+    synchronized (lock) {
+      live = live();
+      sizes = new long[live.size()];
+      resizable = new boolean[live.size()];
+      for (int i = 0; i < sizes.length; i++) {
+        Registration registration = caches.get(i);
+        sizes[i] = registration.bytes.get();
+        resizable[i] = registration.resizable;
+        total += sizes[i];
+        if (!resizable[i]) {
+          fixed += sizes[i];
+        }
+      }
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    long available = Math.max(0, maxBytes - fixed);
+    long shared = total - fixed;
+    for (int i = 0; i < sizes.length; i++) {
+      if (maxBytes == 0) {
+        live.get(i).trimToSize(0);
+      } else if (resizable[i] && sizes[i] > 0) {
+        // Rounds down, so the shares never add up to more than what is available.
+        long share = (long) ((double) sizes[i] * available / shared);
+        live.get(i).trimToSize(share);
+      }
+    }
+  }
+
+  /**
+   * Returns the registered caches which are still reachable, in the order of {@link #caches}, and
+   * forgets the rest. Must be called while holding {@link #lock}.
+   */
+  private static List<Trimmable> live() {
+    List<Trimmable> result = new ArrayList<>();
+    for (Iterator<Registration> i = caches.iterator(); i.hasNext(); ) {
+      Registration registration = i.next();
+      Trimmable cache = registration.get();
+      if (cache == null) {
+        // Nothing reports for it anymore, so it stops counting towards the total.
+        registration.adjust(-registration.bytes.get());
+        i.remove();
+      } else {
+        result.add(cache);
+      }
+    }
+    return result;
+  }
+}
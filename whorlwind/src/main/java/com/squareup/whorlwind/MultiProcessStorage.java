@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import android.content.Context;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+/**
+ * A {@link Storage} which can be shared by several processes of the same app. Unlike
+ * {@link SharedPreferencesStorage}, a write in one process is seen by reads in every other
+ * process.
+ *
+ * <p>Values are kept in memory and in a single file which is rewritten and synced on every write,
+ * while holding an exclusive lock on a companion lock file. The lock file also holds a sequence
+ * number which is incremented by every write before the file is replaced, so a process which dies
+ * part way through a write can't leave others with stale values. It is memory mapped, so a read
+ * only has to compare it with the sequence number of the values in memory and reads don't take
+ * any lock until another process has written.
+ */
+public final class MultiProcessStorage implements BatchStorage {
+  /**
+   * File locks are held by the whole process and closing any channel of a file releases them, so
+   * instances which use the same file share one lock file.
+   */
+  private static final Map<String, LockFile> lockFiles = new HashMap<>();
+
+  private static LockFile lockFileFor(File file) {
+    synchronized (lockFiles) {
+      LockFile lockFile = lockFiles.get(file.getAbsolutePath());
+      if (lockFile == null) {
+        lockFile = new LockFile(file);
+        lockFiles.put(file.getAbsolutePath(), lockFile);
+      }
+      return lockFile;
+    }
+  }
+
+  /**
+   * The process' lock file for a file and its monitor, which guards it and every instance's
+   * writes to their snapshot. The file is opened once and stays open for the life of the process.
+   */
+  private static final class LockFile {
+    final File file;
+    private FileChannel channel;
+    /** The first 8 bytes of the file. */
+    private MappedByteBuffer sequence;
+
+    LockFile(File file) {
+      this.file = file;
+    }
+
+    /** Must be called while holding this lock file's monitor. */
+    void open() throws IOException {
+      if (channel != null) {
+        return;
+      }
+      RandomAccessFile file = new RandomAccessFile(this.file, "rw");
+      try {
+        MappedByteBuffer sequence = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        this.channel = file.getChannel();
+        this.sequence = sequence;
+      } finally {
+        if (channel == null) {
+          file.close();
+        }
+      }
+    }
+  }
+
+  private static final class Snapshot {
+    final long sequence;
+    final Map<String, ByteString> values;
+    /** An estimate of the memory held by {@link #values}. */
+    final long bytes;
+
+    Snapshot(long sequence, Map<String, ByteString> values) {
+      this.sequence = sequence;
+      this.values = values;
+      long bytes = 0;
+      for (Map.Entry<String, ByteString> entry : values.entrySet()) {
+        bytes += ENTRY_OVERHEAD_BYTES + 2 * entry.getKey().length() + entry.getValue().size();
+      }
+      this.bytes = bytes;
+    }
+  }
+
+  /** Roughly what a map entry, its name and its value's objects cost beyond their contents. */
+  private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+  private final File file;
+  /** Its monitor guards writes to {@link #snapshot}. */
+  private final LockFile lockFile;
+  /** The first 8 bytes of the lock file. Assigned before the first snapshot is published. */
+  private MappedByteBuffer sequence;
+  private volatile Snapshot snapshot;
+  /**
+   * Registered with the budget. The values can't be partially released, so they are only dropped
+   * under memory pressure and read from the file again when next needed.
+   */
+  private final MemoryBudget.Trimmable trimmable = new MemoryBudget.Trimmable() {
+    @Override public void trimToSize(long maxBytes) {
+      if (maxBytes == 0) {
+        synchronized (lockFile) {
+          setSnapshot(null);
+        }
+      }
+    }
+  };
+  private final MemoryBudget.Registration registration;
+
+  /** @param name The name of the file in the app's files directory to store values in. */
+  public MultiProcessStorage(Context context, String name) {
+    this(context.getFilesDir(), name);
+  }
+
+  MultiProcessStorage(File directory, String name) {
+    this.file = new File(directory, name);
+    this.lockFile = lockFileFor(new File(directory, name + ".lock"));
+    this.registration = MemoryBudget.register(trimmable, false);
+  }
+
+  @Override public void clear() {
+    write(null);
+  }
+
+  @Override public void remove(@NonNull String name) {
+    write(Collections.<String, ByteString>singletonMap(name, null));
+  }
+
+  @Override public void put(@NonNull String name, @NonNull ByteString value) {
+    write(Collections.singletonMap(name, value));
+  }
+
+  /** Writes all of {@code values} with a single rewrite of the file. */
+  @Override public void putAll(@NonNull Map<String, ByteString> values) {
+    if (!values.isEmpty()) {
+      write(values);
+    }
+  }
+
+  @CheckResult @Override public ByteString get(@NonNull String name) {
+    return current().values.get(name);
+  }
+
+  @CheckResult @Override public Set<String> names() {
+    return current().values.keySet();
+  }
+
+  /** Returns the values in memory, first reloading them if another process wrote since. */
+  private Snapshot current() {
+    Snapshot snapshot = this.snapshot;
+    if (snapshot != null && sequence.getLong(0) == snapshot.sequence) {
+      return snapshot;
+    }
+
+    synchronized (lockFile) {
+      try {
+        open();
+        FileLock fileLock = lockFile.channel.lock(0, Long.MAX_VALUE, true);
+        try {
+          return load();
+        } finally {
+          fileLock.release();
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to read " + file, e);
+      }
+    }
+  }
+
+  /**
+   * Puts each of {@code changes}, or removes it if its value is null. Removes every value if
+   * {@code changes} is null.
+   */
+  private void write(@Nullable Map<String, ByteString> changes) {
+    synchronized (lockFile) {
+      try {
+        open();
+        FileLock fileLock = lockFile.channel.lock();
+        try {
+          Snapshot current = load();
+          Map<String, ByteString> values = new LinkedHashMap<>(current.values);
+          if (changes == null) {
+            values.clear();
+          } else if (!apply(values, changes)) {
+            return;
+          }
+
+          // Other processes reload when they see the new sequence number, waiting for this lock.
+          long next = current.sequence + 1;
+          sequence.putLong(0, next);
+          sequence.force();
+          writeFile(values);
+          setSnapshot(new Snapshot(next, Collections.unmodifiableMap(values)));
+        } finally {
+          fileLock.release();
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to write to " + file, e);
+      }
+    }
+  }
+
+  /** Applies {@code changes} to {@code values} and returns true if that changed them. */
+  private static boolean apply(Map<String, ByteString> values, Map<String, ByteString> changes) {
+    boolean changed = false;
+    for (Map.Entry<String, ByteString> change : changes.entrySet()) {
+      if (change.getValue() != null) {
+        values.put(change.getKey(), change.getValue());
+        changed = true;
+      } else if (values.remove(change.getKey()) != null) {
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /** Must be called while holding {@link #lockFile}'s monitor. */
+  private void open() throws IOException {
+    lockFile.open();
+    sequence = lockFile.sequence;
+  }
+
+  /** Must be called while holding {@link #lockFile}'s monitor and a lock on its channel. */
+  private Snapshot load() throws IOException {
+    long sequence = this.sequence.getLong(0);
+    Snapshot snapshot = this.snapshot;
+    if (snapshot == null || snapshot.sequence != sequence) {
+      snapshot = new Snapshot(sequence, Collections.unmodifiableMap(readFile()));
+      setSnapshot(snapshot);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Publishes {@code snapshot} and reports the change in retained values to the budget. Must be
+   * called while holding {@link #lockFile}'s monitor.
+   */
+  private void setSnapshot(@Nullable Snapshot snapshot) {
+    Snapshot previous = this.snapshot;
+    registration.adjust((snapshot != null ? snapshot.bytes : 0)
+        - (previous != null ? previous.bytes : 0));
+    this.snapshot = snapshot;
+  }
+
+  private Map<String, ByteString> readFile() throws IOException {
+    Map<String, ByteString> values = new LinkedHashMap<>();
+    BufferedSource source;
+    try {
+      source = Okio.buffer(Okio.source(file));
+    } catch (FileNotFoundException e) {
+      return values; // Nothing has been written yet.
+    }
+    try {
+      for (int count = source.readInt(); count > 0; count--) {
+        String name = source.readUtf8(source.readInt());
+        values.put(name, source.readByteString(source.readInt()));
+      }
+    } finally {
+      source.close();
+    }
+    return values;
+  }
+
+  private void writeFile(Map<String, ByteString> values) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      BufferedSink sink = Okio.buffer(Okio.sink(out));
+      sink.writeInt(values.size());
+      for (Map.Entry<String, ByteString> entry : values.entrySet()) {
+        ByteString name = ByteString.encodeUtf8(entry.getKey());
+        sink.writeInt(name.size());
+        sink.write(name);
+        sink.writeInt(entry.getValue().size());
+        sink.write(entry.getValue());
+      }
+      sink.flush();
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      throw new IOException("Failed to rename " + temp + " to " + file);
+    }
+    syncDirectory(file.getParentFile());
+  }
+
+  /** Makes a rename in {@code directory} durable. */
+  private static void syncDirectory(File directory) throws IOException {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return; // Directories can't be opened without Os.
+    }
+    try {
+      FileDescriptor fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+      try {
+        Os.fsync(fd);
+      } finally {
+        Os.close(fd);
+      }
+    } catch (ErrnoException e) {
+      throw new IOException("Failed to sync " + directory, e);
+    }
+  }
+}
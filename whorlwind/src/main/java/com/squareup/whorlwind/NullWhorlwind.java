@@ -15,8 +15,11 @@
  */
 package com.squareup.whorlwind;
 
+import android.annotation.SuppressLint;
 import io.reactivex.Completable;
-import io.reactivex.Observable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import java.util.concurrent.TimeUnit;
 import okio.ByteString;
 
 class NullWhorlwind extends Whorlwind {
@@ -24,11 +27,39 @@ class NullWhorlwind extends Whorlwind {
     return false;
   }
 
-  @Override public Completable write(String name, ByteString value) {
-    return Completable.error(new UnsupportedOperationException());
+  @Override public void write(String name, ByteString value, Protection protection, long ttl,
+      TimeUnit unit, WriteCallback callback) {
+    callback.onError(new UnsupportedOperationException());
   }
 
-  @Override public Observable<ReadResult> read(String name) {
-    return Observable.error(new UnsupportedOperationException());
+  @Override public void compareAndWrite(String name, long expectedVersion, ByteString value,
+      Protection protection, WriteCallback callback) {
+    callback.onError(new UnsupportedOperationException());
+  }
+
+  @Override public Completable flush() {
+    return Completable.complete();
+  }
+
+  @SuppressLint("NewApi") // FINISHED itself uses nothing from M.
+  @Override public Cancelable read(String name, ReadCallback callback) {
+    callback.onError(new UnsupportedOperationException());
+    return FingerprintRead.FINISHED;
+  }
+
+  @Override public Single<PreparedRead> prepareRead(String name) {
+    return Single.error(new UnsupportedOperationException());
+  }
+
+  @Override public Flowable<Entry> readAll() {
+    return Flowable.error(new UnsupportedOperationException());
+  }
+
+  @Override public long sensorActiveTimeMillis() {
+    return 0;
+  }
+
+  @Override public int sensorActivationCount() {
+    return 0;
   }
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import java.util.SortedSet;
+
+/**
+ * A {@link Storage} which keeps its names ordered so that a namespace like {@code merchant/123/}
+ * can be listed or removed without scanning every name.
+ */
+public interface OrderedStorage extends Storage {
+  /** Returns the names which start with {@code prefix} in ascending order. */
+  @CheckResult SortedSet<String> namesWithPrefix(@NonNull String prefix);
+  /** Returns the names in {@code [fromInclusive, toExclusive)} in ascending order. */
+  @CheckResult SortedSet<String> namesInRange(@NonNull String fromInclusive,
+      @NonNull String toExclusive);
+  /** Removes every entry whose name starts with {@code prefix}. */
+  void removeWithPrefix(@NonNull String prefix);
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okio.ByteString;
+
+/**
+ * A {@link Storage} which tracks how recently values were used, and which can be read by
+ * maintenance such as a purge or an export without that counting as a use. Decorators forward
+ * it.
+ *
+ * @see Storages#peek(Storage, String)
+ */
+interface PeekableStorage extends Storage {
+  /** Returns the value of {@code name} like {@link #get(String)}, without counting as a use. */
+  @CheckResult @Nullable ByteString peek(@NonNull String name);
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+final class Prefixes {
+  /**
+   * Returns the smallest string which sorts after every string starting with {@code prefix}, or
+   * null if there is none and the range is unbounded.
+   */
+  @Nullable static String end(@NonNull String prefix) {
+    int length = prefix.length();
+    while (length > 0 && prefix.charAt(length - 1) == Character.MAX_VALUE) {
+      length--;
+    }
+    if (length == 0) {
+      return null;
+    }
+    return prefix.substring(0, length - 1) + (char) (prefix.charAt(length - 1) + 1);
+  }
+
+  private Prefixes() {
+    throw new AssertionError("No instances.");
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import io.reactivex.Observable;
+
+/**
+ * A read whose key store setup and storage lookup have already been done, so that subscribing to
+ * {@link #read()} only has to activate the fingerprint reader.
+ *
+ * <p>The preparation is used by the first subscription to {@link #read()} or call to
+ * {@link #read(ReadCallback)}. It is discarded if this value or the key changed since it was made,
+ * and later reads prepare again, so {@link #read()} always behaves exactly like
+ * {@link Whorlwind#read(String)}.
+ *
+ * <p>The preparation holds a key store operation. It is discarded if it hasn't been used after 30
+ * seconds, and can be discarded earlier with {@link #release()} if the read won't happen.
+ *
+ * @see Whorlwind#prepareRead(String)
+ */
+@SuppressLint("NewApi") // Only created by RealWhorlwind.
+public final class PreparedRead {
+  /** The name of the value which will be read. */
+  @NonNull public final String name;
+  private final FingerprintRead read;
+
+  PreparedRead(@NonNull String name, @NonNull FingerprintRead read) {
+    this.name = name;
+    this.read = read;
+  }
+
+  /** @see Whorlwind#read(String) */
+  @CheckResult @NonNull public Observable<ReadResult> read() {
+    return Observable.create(new ReadOnSubscribe() {
+      @Override Cancelable start(ReadCallback callback) {
+        return read.start(callback);
+      }
+    });
+  }
+
+  /** @see Whorlwind#read(String, ReadCallback) */
+  @NonNull public Cancelable read(@NonNull ReadCallback callback) {
+    return read.start(callback);
+  }
+
+  /**
+   * Discards the preparation if it hasn't been used yet. Reads may still be started afterwards,
+   * and prepare for themselves.
+   */
+  public void release() {
+    read.release();
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+/** How a value is protected, chosen each time it is written. */
+public enum Protection {
+  /**
+   * Encrypted with a key which is only unlocked by a fingerprint read. Reading the value activates
+   * the fingerprint reader. This is the default.
+   */
+  AUTHENTICATED,
+  /**
+   * Encrypted with a key which never requires the user to authenticate, for values which only need
+   * to be protected at rest such as device identifiers. Reading the value completes immediately
+   * without activating the fingerprint reader.
+   */
+  AT_REST
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import io.reactivex.Flowable;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Reads each of {@code names} in turn, only starting a read once downstream has requested an
+ * entry. States which a read emits before more are requested, such as help messages from the
+ * fingerprint reader, are held until they are.
+ *
+ * @see Whorlwind#readAll()
+ */
+final class ReadAllFlowable extends Flowable<Entry> {
+  private final Whorlwind whorlwind;
+  private final Set<String> names;
+
+  ReadAllFlowable(Whorlwind whorlwind, Set<String> names) {
+    this.whorlwind = whorlwind;
+    this.names = names;
+  }
+
+  @Override protected void subscribeActual(Subscriber<? super Entry> subscriber) {
+    subscriber.onSubscribe(new ReadAllSubscription(subscriber, whorlwind, names.iterator()));
+  }
+
+  /** Emission is serialized by the work-in-progress count this extends. */
+  static final class ReadAllSubscription extends AtomicInteger implements Subscription {
+    private static final long serialVersionUID = 1L;
+
+    private final Subscriber<? super Entry> downstream;
+    private final Whorlwind whorlwind;
+    /** Only advanced while draining. */
+    private final Iterator<String> names;
+    private final AtomicLong requested = new AtomicLong();
+    /** States of the current read which haven't been emitted yet. */
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    /** True from starting a read until it emits its last state or fails. */
+    private volatile boolean reading;
+    @Nullable private volatile Throwable error;
+    @Nullable private volatile Cancelable read;
+    private volatile boolean cancelled;
+
+    ReadAllSubscription(Subscriber<? super Entry> downstream, Whorlwind whorlwind,
+        Iterator<String> names) {
+      this.downstream = downstream;
+      this.whorlwind = whorlwind;
+      this.names = names;
+    }
+
+    @Override public void request(long n) {
+      if (n <= 0) {
+        cancel();
+        downstream.onError(new IllegalArgumentException("n <= 0: " + n));
+        return;
+      }
+      while (true) {
+        long current = requested.get();
+        long next = current + n;
+        if (requested.compareAndSet(current, next < 0 ? Long.MAX_VALUE : next)) {
+          break;
+        }
+      }
+      drain();
+    }
+
+    @Override public void cancel() {
+      cancelled = true;
+      Cancelable read = this.read;
+      if (read != null) {
+        read.cancel();
+      }
+    }
+
+    void drain() {
+      if (getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      while (true) {
+        if (cancelled) {
+          entries.clear();
+          return;
+        }
+
+        long emitted = 0;
+        long requested = this.requested.get();
+        while (emitted != requested) {
+          Entry entry = entries.poll();
+          if (entry == null) {
+            break;
+          }
+          downstream.onNext(entry);
+          emitted++;
+          if (cancelled) {
+            return;
+          }
+        }
+        if (emitted != 0 && requested != Long.MAX_VALUE) {
+          requested = this.requested.addAndGet(-emitted);
+        }
+
+        // Every state of a read is queued before it stops reading, so this sees them all.
+        if (!reading && entries.isEmpty()) {
+          Throwable error = this.error;
+          if (error != null) {
+            cancelled = true;
+            downstream.onError(error);
+            return;
+          }
+          if (!names.hasNext()) {
+            cancelled = true;
+            downstream.onComplete();
+            return;
+          }
+          if (requested > 0) {
+            start(names.next());
+          }
+        }
+
+        missed = addAndGet(-missed);
+        if (missed == 0) {
+          return;
+        }
+      }
+    }
+
+    private void start(final String name) {
+      reading = true;
+      Cancelable read = whorlwind.read(name, new ReadCallback() {
+        @Override public void onResult(@NonNull ReadResult result) {
+          entries.offer(Entry.create(name, result));
+          if (ReadOnSubscribe.isLast(result.readState)) {
+            reading = false;
+          }
+          drain();
+        }
+
+        @Override public void onError(@NonNull Throwable e) {
+          error = e;
+          reading = false;
+          drain();
+        }
+      });
+      this.read = read;
+      if (cancelled) {
+        read.cancel();
+      }
+    }
+  }
+}
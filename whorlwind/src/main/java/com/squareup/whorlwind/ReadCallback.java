@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.NonNull;
+import com.squareup.whorlwind.ReadResult.ReadState;
+
+/**
+ * Receives the results of {@link Whorlwind#read(String, ReadCallback)}, which go through the same
+ * states as {@link Whorlwind#read(String)}. A result with a state of {@link ReadState#READY
+ * READY}, {@link ReadState#CORRUPT CORRUPT}, {@link ReadState#UNRECOVERABLE_ERROR
+ * UNRECOVERABLE_ERROR} or {@link ReadState#TIMED_OUT TIMED_OUT}, or a call to
+ * {@link #onError}, is the last one.
+ */
+public interface ReadCallback {
+  void onResult(@NonNull ReadResult result);
+
+  void onError(@NonNull Throwable error);
+}
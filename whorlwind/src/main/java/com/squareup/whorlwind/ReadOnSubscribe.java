@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.NonNull;
+import com.squareup.whorlwind.ReadResult.ReadState;
+import io.reactivex.ObservableEmitter;
+import io.reactivex.ObservableOnSubscribe;
+import io.reactivex.functions.Cancellable;
+
+/** Adapts a read which reports to a {@link ReadCallback} to an {@link io.reactivex.Observable}. */
+abstract class ReadOnSubscribe implements ObservableOnSubscribe<ReadResult> {
+  /** Starts the read. Called once for each subscriber. */
+  abstract Cancelable start(ReadCallback callback);
+
+  @Override public final void subscribe(final ObservableEmitter<ReadResult> emitter) {
+    final Cancelable read = start(new ReadCallback() {
+      @Override public void onResult(@NonNull ReadResult result) {
+        emitter.onNext(result);
+        if (isLast(result.readState)) {
+          emitter.onComplete();
+        }
+      }
+
+      @Override public void onError(@NonNull Throwable error) {
+        emitter.onError(error);
+      }
+    });
+    emitter.setCancellable(new Cancellable() {
+      @Override public void cancel() {
+        read.cancel();
+      }
+    });
+  }
+
+  static boolean isLast(ReadState state) {
+    return state == ReadState.READY
+        || state == ReadState.UNRECOVERABLE_ERROR
+        || state == ReadState.TIMED_OUT
+        || state == ReadState.CORRUPT;
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.Nullable;
+import javax.crypto.Cipher;
+import okio.ByteString;
+
+/** Everything a read needs before it can activate the fingerprint reader. */
+final class ReadPreparation {
+  /** The {@link RealWhorlwind} version of the value's name this was prepared at. */
+  final long version;
+  /** Initialized for decryption with the value's private key, or null if there is no value. */
+  @Nullable final Cipher cipher;
+  /** The stored ciphertext, or null if there is no value. */
+  @Nullable final ByteString encrypted;
+  /** True if the stored value was corrupt and has been removed. */
+  final boolean corrupt;
+
+  ReadPreparation(long version, @Nullable Cipher cipher, @Nullable ByteString encrypted) {
+    this(version, cipher, encrypted, false);
+  }
+
+  ReadPreparation(long version, @Nullable Cipher cipher, @Nullable ByteString encrypted,
+      boolean corrupt) {
+    this.version = version;
+    this.cipher = cipher;
+    this.encrypted = encrypted;
+    this.corrupt = corrupt;
+  }
+}
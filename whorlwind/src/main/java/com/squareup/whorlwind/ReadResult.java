@@ -38,21 +38,34 @@ public final class ReadResult {
    * also be null if there was no encrypted value in storage.
    */
   @Nullable public final ByteString value;
+  /**
+   * The version of {@code value} to pass to
+   * {@link Whorlwind#compareAndWrite(String, long, ByteString) compareAndWrite()}. Will be
+   * {@link Whorlwind#NO_VERSION} if {@code readState} is not {@link ReadState#READY} or if there
+   * was no encrypted value in storage.
+   */
+  public final long version;
 
   private ReadResult(@NonNull ReadState readState, int code, @Nullable CharSequence message,
-      @Nullable ByteString value) {
+      @Nullable ByteString value, long version) {
     this.readState = readState;
     this.code = code;
     this.message = message;
     this.value = value;
+    this.version = version;
   }
 
   public static ReadResult create(@NonNull ReadState readState, int code,
       @Nullable CharSequence message, @Nullable ByteString value) {
+    return create(readState, code, message, value, Whorlwind.NO_VERSION);
+  }
+
+  public static ReadResult create(@NonNull ReadState readState, int code,
+      @Nullable CharSequence message, @Nullable ByteString value, long version) {
     if (readState == null) {
       throw new IllegalArgumentException("ReadState cannot be null.");
     }
-    return new ReadResult(readState, code, message, value);
+    return new ReadResult(readState, code, message, value, version);
   }
 
   public enum ReadState {
@@ -78,6 +91,19 @@ public final class ReadResult {
      */
     RECOVERABLE_ERROR,
 
+    /**
+     * The fingerprint reader was idle for longer than the timeout set with
+     * {@link Whorlwind.Builder#sensorTimeout} and is no longer active.
+     */
+    TIMED_OUT,
+
+    /**
+     * The stored value was corrupt and couldn't be decrypted, so it has been removed. Other values
+     * are unaffected. Usually caught before the fingerprint reader is activated, but a value which
+     * looked intact can also fail to decrypt once the user has authenticated.
+     */
+    CORRUPT,
+
     /**
      * Value is ready to be consumed. If the value is null, it was not found in secure storage. The
      * fingerprint reader is no longer active.
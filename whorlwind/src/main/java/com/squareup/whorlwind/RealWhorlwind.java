@@ -18,6 +18,8 @@ package com.squareup.whorlwind;
 import android.content.Context;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyPermanentlyInvalidatedException;
 import android.security.keystore.KeyProperties;
@@ -26,21 +28,43 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import android.util.Log;
 import io.reactivex.Completable;
+import io.reactivex.CompletableObserver;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
-import io.reactivex.functions.Action;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Function;
+import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
-import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
 import java.security.spec.KeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.crypto.Cipher;
 import okio.ByteString;
+import org.reactivestreams.Publisher;
 
 import static android.Manifest.permission.USE_BIOMETRIC;
 import static android.Manifest.permission.USE_FINGERPRINT;
@@ -48,27 +72,140 @@ import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 
 @RequiresApi(Build.VERSION_CODES.M)
 final class RealWhorlwind extends Whorlwind {
+  /** How long a purge waits for in-flight writes before trying again. */
+  private static final long PURGE_RETRY_MS = 100;
+  /** Appended to the key alias for the key which backs {@link Protection#AT_REST}. */
+  private static final String AT_REST_ALIAS_SUFFIX = ".at-rest";
+  /**
+   * The serial number of the certificate of key pairs generated since values have had a header,
+   * which can't have encrypted a value without one. The key store defaults to 1.
+   */
+  private static final BigInteger HEADER_KEY_SERIAL = BigInteger.valueOf(2);
+  /**
+   * How long an unused {@link PreparedRead} keeps its cipher. The cipher holds a key store
+   * operation, which shouldn't be kept for a read which never comes.
+   */
+  private static final long PREPARATION_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+  /** How many stripes names are divided into, each with its own version and in-flight writes. */
+  private static final int NAME_STRIPES = 256;
+  private static final SecureRandom entryVersions = new SecureRandom();
+
   private final Context context;
   private final FingerprintManager fingerprintManager;
   @SuppressWarnings("WeakerAccess") // Used in nested class. Removing synthetic accessor.
-  final Storage storage;
+  final AsyncStorage storage;
+  /** {@link #storage} unwrapped, if it only adapts a blocking {@link Storage}. */
+  @Nullable private final Storage directStorage;
   private final String keyAlias;
+  private final String atRestKeyAlias;
   private final KeyStore keyStore;
   private final KeyPairGenerator keyGenerator;
   private final KeyFactory keyFactory;
   private final AtomicBoolean readerScanning;
   @SuppressWarnings("WeakerAccess") // Used in nested class. Removing synthetic accessor.
-  final Object dataLock = new Object();
+  final Object dataLock;
+  /**
+   * Held by a write while it stores its value, so that {@link #compareAndWrite} can compare and
+   * store without another write of the same name in between.
+   */
+  private final Object[] nameLocks;
+  @Nullable final Scheduler cryptoScheduler;
+  /**
+   * Decrypts values once the fingerprint reader has authenticated the user, or null for
+   * {@link CryptoScheduler}, which isn't created until it is needed.
+   */
+  @Nullable private final Scheduler decryptScheduler;
+  /** Receives the fingerprint reader's callbacks, or null for the main thread. */
+  @Nullable final Handler callbackHandler;
+  /** Reports decrypted values, or null to post them to {@link #callbackHandler}'s thread. */
+  @Nullable private final Scheduler resultScheduler;
+  final long sensorTimeoutMs;
+  @Nullable final Observable<Boolean> sensorActive;
+  /**
+   * Schedules sensor timeouts and the expiry of unused preparations, and is the clock for
+   * {@link #sensorActiveMillis}.
+   */
+  final Scheduler sensorScheduler;
+  final AtomicLong sensorActiveMillis = new AtomicLong();
+  final AtomicInteger sensorActivations = new AtomicInteger();
+  /**
+   * Regenerates invalidated keys and purges values encrypted with old ones or which have expired.
+   * Also the clock for expiry. Null for {@link CryptoScheduler}, which isn't created until it is
+   * needed.
+   */
+  @Nullable private final Scheduler maintenanceScheduler;
+  /** Writes which have encrypted their value but not yet finished storing it, per stripe. */
+  private final AtomicIntegerArray writesInFlight = new AtomicIntegerArray(NAME_STRIPES);
+  private final AtomicBoolean purgeScheduled = new AtomicBoolean();
+  /**
+   * Set by work under the data lock which found values to purge. The purge takes name locks, so
+   * it is only scheduled once the data lock has been released.
+   */
+  private final AtomicBoolean purgePending = new AtomicBoolean();
+  /** Incremented whenever a key pair changes, which changes how every value reads. */
+  private final AtomicLong keyVersion = new AtomicLong();
+  /**
+   * Incremented whenever a stored value changes, per stripe of names. Together with
+   * {@link #keyVersion}, lets a {@link ReadPreparation} tell whether it is still current without
+   * being discarded by writes of most other names.
+   */
+  private final AtomicLongArray nameVersions = new AtomicLongArray(NAME_STRIPES);
+  private final Runnable purge = new Runnable() {
+    @Override public void run() {
+      // A key generated from here on schedules another pass.
+      purgeScheduled.set(false);
+      Set<String> names;
+      try {
+        names = storage.names().blockingGet();
+      } catch (Exception e) {
+        Log.w(TAG, "Purging stale values failed.", e);
+        return;
+      }
+      purgeAll(names);
+    }
+  };
+
+  /** Guards {@link #sweepAt} and {@link #pendingSweep}. */
+  private final Object sweepLock = new Object();
+  /** When {@link #pendingSweep} runs, or {@link Long#MAX_VALUE} if there is none. */
+  private long sweepAt = Long.MAX_VALUE;
+  /**
+   * The one sweep pending, for the earliest expiry known. Each purge pass schedules the next for
+   * the values it kept, so later expiries don't need a sweep of their own.
+   */
+  @Nullable private Disposable pendingSweep;
+  private final Runnable sweep = new Runnable() {
+    @Override public void run() {
+      synchronized (sweepLock) {
+        sweepAt = Long.MAX_VALUE;
+        pendingSweep = null;
+      }
+      schedulePurge();
+    }
+  };
 
-  RealWhorlwind(Context context, FingerprintManager fingerprintManager, Storage storage,
-      String keyAlias, KeyStore keyStore, KeyPairGenerator keyGenerator, KeyFactory keyFactory) {
-    this.context = context;
+  RealWhorlwind(Builder builder, FingerprintManager fingerprintManager,
+      KeyStoreRegistry registry) {
+    this.context = builder.context;
     this.fingerprintManager = fingerprintManager;
-    this.storage = storage;
-    this.keyAlias = keyAlias;
-    this.keyStore = keyStore;
-    this.keyGenerator = keyGenerator;
-    this.keyFactory = keyFactory;
+    this.storage = builder.storage;
+    this.directStorage = storage instanceof BlockingAsyncStorage //
+        ? ((BlockingAsyncStorage) storage).direct() : null;
+    this.keyAlias = builder.keyAlias;
+    this.atRestKeyAlias = keyAlias + AT_REST_ALIAS_SUFFIX;
+    this.keyStore = registry.keyStore;
+    this.keyGenerator = registry.keyGenerator;
+    this.keyFactory = registry.keyFactory;
+    this.dataLock = registry.lockFor(keyAlias);
+    this.nameLocks = registry.nameLocksFor(keyAlias);
+    this.cryptoScheduler = builder.cryptoScheduler;
+    this.decryptScheduler = cryptoScheduler != null ? cryptoScheduler : builder.decryptScheduler;
+    this.callbackHandler = builder.callbackHandler;
+    this.resultScheduler = builder.resultScheduler;
+    this.sensorTimeoutMs = builder.sensorTimeoutMs;
+    this.sensorActive = builder.sensorActive;
+    this.sensorScheduler = builder.sensorScheduler;
+    this.maintenanceScheduler = builder.maintenanceScheduler;
 
     readerScanning = new AtomicBoolean();
   }
@@ -99,65 +236,649 @@ final class RealWhorlwind extends Whorlwind {
     }
   }
 
-  @Override public Completable write(@NonNull final String name, @Nullable final ByteString value) {
-    return Completable.fromAction(new Action() {
-      @Override public void run() throws Exception {
+  @Override public void write(@NonNull String name, @Nullable ByteString value,
+      @NonNull Protection protection, long ttl, @NonNull TimeUnit unit,
+      @NonNull WriteCallback callback) {
+    if (ttl < 0) {
+      throw new IllegalArgumentException("ttl < 0: " + ttl);
+    }
+    long ttlMs = unit.toMillis(ttl); // Saturates at Long.MAX_VALUE.
+    if (ttlMs != Long.MAX_VALUE && unit.convert(ttlMs, TimeUnit.MILLISECONDS) < ttl) {
+      ttlMs++; // Round up, so that a short TTL doesn't become 0 and never expire.
+    }
+    write(name, value, protection, ttlMs, false, NO_VERSION, callback);
+  }
+
+  @Override public void compareAndWrite(@NonNull String name, long expectedVersion,
+      @Nullable ByteString value, @NonNull Protection protection,
+      @NonNull WriteCallback callback) {
+    write(name, value, protection, 0, true, expectedVersion, callback);
+  }
+
+  private void write(final String name, @Nullable final ByteString value,
+      final Protection protection, final long ttlMs, final boolean conditional,
+      final long expectedVersion, final WriteCallback callback) {
+    if (cryptoScheduler == null) {
+      writeNow(name, value, protection, ttlMs, conditional, expectedVersion, callback);
+      return;
+    }
+    cryptoScheduler.scheduleDirect(new Runnable() {
+      @Override public void run() {
+        writeNow(name, value, protection, ttlMs, conditional, expectedVersion, callback);
+      }
+    });
+  }
+
+  void writeNow(String name, @Nullable ByteString value, Protection protection, long ttlMs,
+      boolean conditional, long expectedVersion, WriteCallback callback) {
+    try {
+      writeValue(name, value, protection, ttlMs, conditional, expectedVersion, callback);
+    } finally {
+      schedulePendingPurge();
+    }
+  }
+
+  private void writeValue(String name, @Nullable ByteString value, Protection protection,
+      long ttlMs, boolean conditional, long expectedVersion, WriteCallback callback) {
+    if (conditional) {
+      compareAndStore(name, expectedVersion, value, protection, callback);
+      return;
+    }
+
+    // Encrypting and storing under the name's lock keeps writes of one name in order, and keeps
+    // a purge from checking the name while its value is between the two.
+    synchronized (nameLock(name)) {
+      try {
         checkCanStoreSecurely();
+      } catch (Exception e) {
+        callback.onError(e);
+        return;
+      }
+      if (value == null) {
+        remove(name, callback);
+      } else {
+        put(name, value, protection, ttlMs, callback);
+      }
+    }
+  }
+
+  /** Must be called while holding the name's lock. */
+  private void put(String name, ByteString value, Protection protection, long ttlMs,
+      WriteCallback callback) {
+    long expiresAt = 0;
+    if (ttlMs != 0) {
+      long now = now();
+      // A TTL too long to add to the clock saturates rather than wrapping into the past.
+      expiresAt = ttlMs > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlMs;
+    }
+    ByteString encrypted;
+    try {
+      encrypted = encrypt(name, value, protection, expiresAt);
+    } catch (Exception e) {
+      callback.onError(e);
+      return;
+    }
+
+    // The write is in flight from here, until its observer or the finally block below ends it.
+    if (directStorage == null) {
+      Completable put;
+      try {
+        put = storage.put(name, encrypted);
+      } catch (RuntimeException e) {
+        changed(name);
+        writesInFlight.decrementAndGet(nameStripe(name));
+        callback.onError(e);
+        return;
+      }
+      // Subscribed to under the lock so that the storage sees writes of a name in order.
+      put.subscribe(new PersistObserver(name, callback, true, expiresAt));
+      return;
+    }
+    try {
+      directStorage.put(name, encrypted);
+    } catch (RuntimeException e) {
+      callback.onError(e);
+      return;
+    } finally {
+      changed(name);
+      writesInFlight.decrementAndGet(nameStripe(name));
+    }
+    sweepAfter(expiresAt);
+    callback.onComplete();
+  }
+
+  /** Must be called while holding the name's lock. */
+  private void remove(String name, WriteCallback callback) {
+    if (directStorage == null) {
+      Completable remove;
+      try {
+        remove = storage.remove(name);
+      } catch (RuntimeException e) {
+        callback.onError(e);
+        return;
+      }
+      remove.subscribe(new PersistObserver(name, callback, false, 0));
+      return;
+    }
+    try {
+      directStorage.remove(name);
+    } catch (RuntimeException e) {
+      callback.onError(e);
+      return;
+    } finally {
+      changed(name);
+    }
+    callback.onComplete();
+  }
 
-        synchronized (dataLock) {
+  /**
+   * Stores {@code value} encrypted, or removes the value if it is null, if the stored value's
+   * version is {@code expectedVersion}. Storage is called on this thread, even if it is
+   * asynchronous, since nothing else may write the name until it is done. Only this name's lock is
+   * held, so writes of other names and reads carry on.
+   */
+  private void compareAndStore(String name, long expectedVersion, @Nullable ByteString value,
+      Protection protection, WriteCallback callback) {
+    long actualVersion;
+    try {
+      checkCanStoreSecurely();
+      synchronized (nameLock(name)) {
+        actualVersion = currentEntryVersion(name);
+        if (actualVersion == expectedVersion) {
           if (value == null) {
-            storage.remove(name);
-            return;
+            if (directStorage != null) {
+              directStorage.remove(name);
+            } else {
+              storage.remove(name).blockingAwait();
+            }
+            changed(name);
+          } else {
+            ByteString encrypted = encrypt(name, value, protection, 0);
+            try {
+              if (directStorage != null) {
+                directStorage.put(name, encrypted);
+              } else {
+                storage.put(name, encrypted).blockingAwait();
+              }
+            } finally {
+              changed(name);
+              writesInFlight.decrementAndGet(nameStripe(name));
+            }
           }
+        }
+      }
+    } catch (Exception e) {
+      callback.onError(e);
+      return;
+    }
+    if (actualVersion != expectedVersion) {
+      callback.onError(new VersionConflictException(expectedVersion, actualVersion));
+      return;
+    }
+    callback.onComplete();
+  }
 
-          prepareKeyStore();
+  /**
+   * Returns the entry version of the stored value of {@code name}, or {@link #NO_VERSION} if a
+   * read would find no value.
+   */
+  private long currentEntryVersion(String name) throws GeneralSecurityException {
+    ByteString encrypted = peek(name);
+    if (encrypted == null || isExpired(encrypted)) {
+      return NO_VERSION;
+    }
+    checkSupported(encrypted);
+    String alias = CiphertextHeader.isAtRest(encrypted) ? atRestKeyAlias : keyAlias;
+    synchronized (dataLock) {
+      if (!hasValidKey(alias) || isStale(encrypted, alias)) {
+        return NO_VERSION;
+      }
+    }
+    return CiphertextHeader.entryVersion(encrypted);
+  }
+
+  private Object nameLock(String name) {
+    return nameLocks[(name.hashCode() & Integer.MAX_VALUE) % nameLocks.length];
+  }
 
-          Cipher cipher = createCipher();
-          cipher.init(Cipher.ENCRYPT_MODE, getPublicKey());
+  /** Returns a new entry version, which is never one with a special meaning. */
+  private static long newEntryVersion() {
+    long version;
+    do {
+      version = entryVersions.nextLong();
+    } while (version == NO_VERSION || version == CiphertextHeader.LEGACY_ENTRY_VERSION);
+    return version;
+  }
 
-          storage.put(name, ByteString.of(cipher.doFinal(value.toByteArray())));
+  /**
+   * Returns {@code value} encrypted with the key for {@code protection}, generating the key if
+   * needed. The write of {@code name} is counted as in flight until it has been persisted.
+   */
+  private ByteString encrypt(String name, ByteString value, Protection protection, long expiresAt)
+      throws GeneralSecurityException {
+    boolean atRest = protection == Protection.AT_REST;
+    String alias = atRest ? atRestKeyAlias : keyAlias;
+    synchronized (dataLock) {
+      // Unlike a read, a write can't proceed without a key so it generates one if it has to.
+      if (!hasValidKey(alias)) {
+        generateKey(alias, !atRest);
+      }
+
+      PublicKey publicKey = getPublicKey(alias);
+      Cipher cipher = createCipher();
+      cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+      byte[] plaintext = value.toByteArray();
+      byte[] payload;
+      try {
+        payload = cipher.doFinal(plaintext);
+      } finally {
+        Arrays.fill(plaintext, (byte) 0); // Don't leave a copy of the value for the heap.
+      }
+      ByteString encrypted = CiphertextHeader.encode(CiphertextHeader.ALGORITHM_RSA_ECB_PKCS1,
+          atRest ? CiphertextHeader.FLAG_AT_REST : 0, CiphertextHeader.keyId(publicKey),
+          newEntryVersion(), expiresAt, payload);
+      // Counted while still holding the lock so a purge never races with the put.
+      writesInFlight.incrementAndGet(nameStripe(name));
+      return encrypted;
+    }
+  }
+
+  @Override public Completable flush() {
+    return storage.flush();
+  }
+
+  @NonNull @Override
+  public Cancelable read(@NonNull String name, @NonNull ReadCallback callback) {
+    return new FingerprintRead(fingerprintManager, name, readerScanning, this, null) //
+        .start(callback);
+  }
+
+  @Override public Single<PreparedRead> prepareRead(@NonNull final String name) {
+    Single<PreparedRead> prepareRead = Single.fromCallable(new Callable<PreparedRead>() {
+      @Override public PreparedRead call() throws Exception {
+        checkCanStoreSecurely();
+
+        final ReadPreparation prepared = prepare(name);
+        final AtomicReference<ReadPreparation> preparation = new AtomicReference<>(prepared);
+        if (prepared.cipher != null) {
+          sensorScheduler.scheduleDirect(new Runnable() {
+            @Override public void run() {
+              preparation.compareAndSet(prepared, null);
+            }
+          }, PREPARATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
         }
+        return new PreparedRead(name,
+            new FingerprintRead(fingerprintManager, name, readerScanning, RealWhorlwind.this,
+                preparation));
+      }
+    });
+    return cryptoScheduler != null ? prepareRead.subscribeOn(cryptoScheduler) : prepareRead;
+  }
+
+  @Override public Flowable<Entry> readAll() {
+    return storage.names().flatMapPublisher(new Function<Set<String>, Publisher<Entry>>() {
+      @Override public Publisher<Entry> apply(Set<String> names) {
+        return new ReadAllFlowable(RealWhorlwind.this, names);
       }
     });
   }
 
-  @Override public Observable<ReadResult> read(@NonNull String name) {
-    return Observable.create(new FingerprintAuthOnSubscribe(fingerprintManager, storage, name, //
-        readerScanning, dataLock, this));
+  @Override public long sensorActiveTimeMillis() {
+    return sensorActiveMillis.get();
+  }
+
+  @Override public int sensorActivationCount() {
+    return sensorActivations.get();
   }
 
   /**
-   * Prepares the key store and our keys for encrypting/decrypting. Keys will be generated if we
-   * haven't done so yet, and keys will be re-generated if the old ones have been invalidated. In
-   * both cases, our K/V store will be cleared before continuing.
+   * Does everything a read of {@code name} needs before the fingerprint reader can be activated:
+   * loading the stored ciphertext, checking its key and initializing a cipher with the private
+   * key. A value which has expired or was encrypted with a key which has since been replaced is
+   * treated as absent. A value which is structurally corrupt is removed, so that the fingerprint
+   * reader isn't activated for a value which can't be decrypted.
    */
-  void prepareKeyStore() {
+  ReadPreparation prepare(String name) throws GeneralSecurityException {
     try {
-      Key key = keyStore.getKey(keyAlias, null);
-      Certificate certificate = keyStore.getCertificate(keyAlias);
-      if (key != null && certificate != null) {
-        try {
-          createCipher().init(Cipher.DECRYPT_MODE, key);
+      return prepareValue(name);
+    } finally {
+      schedulePendingPurge();
+    }
+  }
+
+  private ReadPreparation prepareValue(String name) throws GeneralSecurityException {
+    // Storage I/O happens outside of the lock so it doesn't block other reads and writes. A write
+    // which lands after the version is read increments it once stored, so it can't be missed.
+    long version = version(name);
+    ByteString encrypted = load(name);
+    if (encrypted == null) {
+      return new ReadPreparation(version, null, null);
+    }
+    if (isExpired(encrypted)) {
+      schedulePurge();
+      return new ReadPreparation(version, null, null);
+    }
+    checkSupported(encrypted);
 
-          // We have a keys in the store and they're still valid.
-          return;
-        } catch (KeyPermanentlyInvalidatedException e) {
-          Log.d(TAG, "Key invalidated.");
+    boolean atRest = CiphertextHeader.isAtRest(encrypted);
+    String alias = atRest ? atRestKeyAlias : keyAlias;
+    Cipher cipher = null;
+    boolean corrupt;
+    synchronized (dataLock) {
+      if (!hasValidKey(alias)) {
+        if (!atRest) {
+          // Generate the next key ahead of the next write rather than making this read wait.
+          scheduleKeyGeneration();
         }
+        purgePending.set(true);
+        return new ReadPreparation(version, null, null);
+      }
+      if (isStale(encrypted, alias)) {
+        purgePending.set(true);
+        return new ReadPreparation(version, null, null);
+      }
+
+      corrupt = !CiphertextHeader.isIntact(encrypted, blockSize(alias));
+      if (!corrupt) {
+        try {
+          cipher = createCipher();
+          cipher.init(Cipher.DECRYPT_MODE, keyStore.getKey(alias, null));
+        } catch (GeneralSecurityException e) {
+          Log.i(TAG, "Failed to initialize cipher for decryption.", e);
+          throw e;
+        }
+      }
+    }
+    if (corrupt) {
+      Log.w(TAG, "Removing corrupt value.");
+      removeIfUnchanged(name, encrypted);
+      return new ReadPreparation(version(name), null, null, true);
+    }
+    return new ReadPreparation(version, cipher, encrypted);
+  }
+
+  /**
+   * Returns the size of a block encrypted with the key pair stored under {@code alias}, or 0 if
+   * it isn't known. Hold the data lock.
+   */
+  private int blockSize(String alias) throws GeneralSecurityException {
+    PublicKey publicKey = keyStore.getCertificate(alias).getPublicKey();
+    if (!(publicKey instanceof RSAPublicKey)) {
+      return 0;
+    }
+    return (((RSAPublicKey) publicKey).getModulus().bitLength() + 7) / 8;
+  }
+
+  /** Removes the value of {@code name} if it is still {@code encrypted}. */
+  void removeIfUnchanged(String name, ByteString encrypted) {
+    synchronized (nameLock(name)) {
+      if (!encrypted.equals(peek(name))) {
+        return;
+      }
+      if (directStorage != null) {
+        directStorage.remove(name);
+      } else {
+        storage.remove(name).blockingAwait();
       }
+      changed(name);
+    }
+  }
+
+  @Nullable private ByteString load(String name) {
+    return directStorage != null ? directStorage.get(name) : storage.get(name).blockingGet();
+  }
+
+  /** Like {@link #load}, for maintenance which shouldn't count as a use of the value. */
+  @Nullable private ByteString peek(String name) {
+    return directStorage != null
+        ? Storages.peek(directStorage, name)
+        : storage.get(name).blockingGet();
+  }
+
+  /** Fails before the fingerprint reader is activated for a value written in a newer format. */
+  private static void checkSupported(ByteString encrypted) throws GeneralSecurityException {
+    int version = CiphertextHeader.version(encrypted);
+    int algorithm = CiphertextHeader.algorithm(encrypted);
+    if (version > CiphertextHeader.VERSION
+        || (algorithm != CiphertextHeader.ALGORITHM_LEGACY
+        && algorithm != CiphertextHeader.ALGORITHM_RSA_ECB_PKCS1)) {
+      throw new GeneralSecurityException(
+          "Unsupported ciphertext format: version " + version + ", algorithm " + algorithm);
+    }
+  }
 
-      storage.clear();
+  /**
+   * Returns true if {@code name} hasn't been written, the keys haven't changed and the value hasn't
+   * expired since preparation.
+   */
+  boolean isCurrent(String name, ReadPreparation preparation) {
+    return preparation.version == version(name)
+        && (preparation.encrypted == null || !isExpired(preparation.encrypted));
+  }
 
-      keyGenerator.initialize(new KeyGenParameterSpec.Builder(keyAlias,
+  /** Returns a version which changes whenever {@code name} or the key pairs change. */
+  private long version(String name) {
+    // Both only ever increase, so their sum changes whenever either does.
+    return keyVersion.get() + nameVersions.get(nameStripe(name));
+  }
+
+  /** Records that the stored value of {@code name} changed. */
+  private void changed(String name) {
+    nameVersions.incrementAndGet(nameStripe(name));
+  }
+
+  private static int nameStripe(String name) {
+    return (name.hashCode() & Integer.MAX_VALUE) % NAME_STRIPES;
+  }
+
+  private boolean isExpired(ByteString encrypted) {
+    return CiphertextHeader.isExpired(encrypted, now());
+  }
+
+  private long now() {
+    return maintenanceScheduler != null
+        ? maintenanceScheduler.now(TimeUnit.MILLISECONDS)
+        : System.currentTimeMillis();
+  }
+
+  private Scheduler maintenanceScheduler() {
+    return maintenanceScheduler != null ? maintenanceScheduler : CryptoScheduler.get();
+  }
+
+  Scheduler decryptScheduler() {
+    return decryptScheduler != null ? decryptScheduler : CryptoScheduler.get();
+  }
+
+  /** Runs {@code report} on the thread which receives the fingerprint reader's callbacks. */
+  void postResult(Runnable report) {
+    if (resultScheduler != null) {
+      resultScheduler.scheduleDirect(report);
+      return;
+    }
+    Handler handler =
+        callbackHandler != null ? callbackHandler : new Handler(Looper.getMainLooper());
+    if (handler.getLooper() == Looper.myLooper()) {
+      report.run();
+    } else {
+      handler.post(report);
+    }
+  }
+
+  /**
+   * Returns true if there is a key pair and it hasn't been invalidated. Hold the data lock, or read
+   * {@link #keyVersion} first so that a key pair generated meanwhile is noticed.
+   */
+  private boolean hasValidKey(String alias) throws GeneralSecurityException {
+    Key key = keyStore.getKey(alias, null);
+    Certificate certificate = keyStore.getCertificate(alias);
+    if (key == null || certificate == null) {
+      return false;
+    }
+    try {
+      createCipher().init(Cipher.DECRYPT_MODE, key);
+      return true;
+    } catch (KeyPermanentlyInvalidatedException e) {
+      Log.d(TAG, "Key invalidated.");
+      return false;
+    }
+  }
+
+  /**
+   * Returns true if {@code encrypted} was encrypted with a key pair other than the one stored under
+   * {@code alias}. A value without a header is stale once its key pair has been replaced by one
+   * generated since values have had a header. Hold the data lock.
+   */
+  private boolean isStale(ByteString encrypted, String alias) throws GeneralSecurityException {
+    Certificate certificate = keyStore.getCertificate(alias);
+    if (!CiphertextHeader.hasHeader(encrypted)) {
+      return isHeaderKey(certificate);
+    }
+    return CiphertextHeader.keyId(encrypted) != CiphertextHeader.keyId(certificate.getPublicKey());
+  }
+
+  /** Returns true if {@code certificate}'s key pair was generated since values had a header. */
+  private static boolean isHeaderKey(Certificate certificate) {
+    return certificate instanceof X509Certificate
+        && HEADER_KEY_SERIAL.equals(((X509Certificate) certificate).getSerialNumber());
+  }
+
+  /**
+   * Generates a new key pair under {@code alias}, replacing an invalidated one. Values encrypted
+   * with the old key are treated as absent from now on and purged in the background, so this
+   * costs the same however many values are stored. Hold the data lock.
+   */
+  private void generateKey(String alias, boolean authenticated) throws GeneralSecurityException {
+    // The generator is shared with every other instance in the process.
+    synchronized (keyGenerator) {
+      keyGenerator.initialize(new KeyGenParameterSpec.Builder(alias,
           KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT) //
           .setBlockModes(KeyProperties.BLOCK_MODE_ECB) //
-          .setUserAuthenticationRequired(true) //
+          .setUserAuthenticationRequired(authenticated) //
           .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_RSA_PKCS1) //
+          // Persists that older values without a header are stale along with the key.
+          .setCertificateSerialNumber(HEADER_KEY_SERIAL) //
           .build());
 
       keyGenerator.generateKeyPair();
-    } catch (GeneralSecurityException e) {
-      throw new RuntimeException(e);
+    }
+    keyVersion.incrementAndGet();
+    purgePending.set(true);
+  }
+
+  /** Generates a key pair in the background so that a later write doesn't have to wait for it. */
+  private void scheduleKeyGeneration() {
+    maintenanceScheduler().scheduleDirect(new Runnable() {
+      @Override public void run() {
+        try {
+          synchronized (dataLock) {
+            if (!hasValidKey(keyAlias)) {
+              generateKey(keyAlias, true);
+            }
+          }
+        } catch (Exception e) {
+          Log.w(TAG, "Key generation failed.", e);
+        }
+        schedulePendingPurge();
+      }
+    });
+  }
+
+  /** Removes every value encrypted with an old key pair in the background. */
+  private void schedulePurge() {
+    if (purgeScheduled.compareAndSet(false, true)) {
+      maintenanceScheduler().scheduleDirect(purge);
+    }
+  }
+
+  /**
+   * Purges {@code names} which are stale. Names which are busy with a write are skipped and
+   * retried on their own shortly after, so a steady stream of writes can't starve the others.
+   */
+  @SuppressWarnings("WeakerAccess") // Used in nested class. Removing synthetic accessor.
+  void purgeAll(Collection<String> names) {
+    final List<String> busy = new ArrayList<>();
+    PurgePass pass = new PurgePass();
+    for (String name : names) {
+      try {
+        if (!purgeIfStale(name, pass)) {
+          busy.add(name);
+        }
+      } catch (Exception e) {
+        Log.w(TAG, "Purging stale value failed.", e);
+      }
+    }
+    sweepAfter(pass.nextExpiry);
+    if (!busy.isEmpty()) {
+      maintenanceScheduler().scheduleDirect(new Runnable() {
+        @Override public void run() {
+          purgeAll(busy);
+        }
+      }, PURGE_RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Sweeps once {@code expiresAt} has passed, in case its value isn't read again, unless a sweep
+   * is already pending for then or earlier. Call once the value is stored, so that a pending sweep
+   * can't list the names before it and miss it. Does nothing for 0 or {@link Long#MAX_VALUE}.
+   */
+  @SuppressWarnings("WeakerAccess") // Used in nested class. Removing synthetic accessor.
+  void sweepAfter(long expiresAt) {
+    if (expiresAt == 0 || expiresAt == Long.MAX_VALUE) {
+      return;
+    }
+    synchronized (sweepLock) {
+      if (sweepAt <= expiresAt) {
+        return;
+      }
+      if (pendingSweep != null) {
+        pendingSweep.dispose();
+      }
+      sweepAt = expiresAt;
+      pendingSweep = null;
+      Disposable scheduled = maintenanceScheduler().scheduleDirect(sweep,
+          Math.max(0, expiresAt - now()), TimeUnit.MILLISECONDS);
+      // A scheduler which runs it at once has already cleared sweepAt.
+      if (sweepAt == expiresAt) {
+        pendingSweep = scheduled;
+      }
+    }
+  }
+
+  /** Schedules a purge requested under the data lock. Don't hold any lock. */
+  private void schedulePendingPurge() {
+    if (purgePending.getAndSet(false)) {
+      schedulePurge();
+    }
+  }
+
+  /**
+   * Removes the value of {@code name} if it has expired or can't be decrypted with the current key
+   * pair of its protection. Each value is checked under its name's lock on its own, so reads and
+   * writes can interleave with a purge. Returns false without doing anything while a write of a
+   * name in its stripe is storing its value, since that value could be the one removed.
+   */
+  private boolean purgeIfStale(String name, PurgePass pass) throws GeneralSecurityException {
+    synchronized (nameLock(name)) {
+      if (writesInFlight.get(nameStripe(name)) > 0) {
+        return false;
+      }
+      ByteString encrypted = peek(name);
+      if (encrypted == null) {
+        return true;
+      }
+      boolean stale = isExpired(encrypted) || pass.isStale(encrypted);
+      if (!stale) {
+        pass.kept(CiphertextHeader.expiresAt(encrypted));
+      } else {
+        if (directStorage != null) {
+          directStorage.remove(name);
+        } else {
+          storage.remove(name).blockingAwait();
+        }
+        changed(name);
+      }
+      return true;
     }
   }
 
@@ -169,8 +890,8 @@ final class RealWhorlwind extends Whorlwind {
         + KeyProperties.ENCRYPTION_PADDING_RSA_PKCS1);
   }
 
-  @SuppressWarnings("WeakerAccess") PublicKey getPublicKey() throws GeneralSecurityException {
-    PublicKey publicKey = keyStore.getCertificate(keyAlias).getPublicKey();
+  PublicKey getPublicKey(String alias) throws GeneralSecurityException {
+    PublicKey publicKey = keyStore.getCertificate(alias).getPublicKey();
 
     // In contradiction to the documentation, the public key returned from the key store is only
     // unlocked after the user has authenticated with their fingerprint. This is unnecessary
@@ -178,18 +899,169 @@ final class RealWhorlwind extends Whorlwind {
     // our own copy of the key. See known issues at
     // http://developer.android.com/reference/android/security/keystore/KeyGenParameterSpec.html
     KeySpec spec = new X509EncodedKeySpec(publicKey.getEncoded());
-    return keyFactory.generatePublic(spec);
+    // The factory is shared with instances of every alias, which don't share a data lock.
+    synchronized (keyFactory) {
+      return keyFactory.generatePublic(spec);
+    }
   }
 
-  PrivateKey getPrivateKey() throws GeneralSecurityException {
-    return (PrivateKey) keyStore.getKey(keyAlias, null);
+  /** Returns the payload of {@code encrypted}, with or without a header. */
+  static byte[] decrypt(Cipher cipher, ByteString encrypted) throws GeneralSecurityException {
+    // Values with and without a header both hold an RSA block. Only its offset differs.
+    return cipher.doFinal(encrypted.toByteArray(), CiphertextHeader.payloadOffset(encrypted),
+        CiphertextHeader.payloadLength(encrypted));
   }
 
   void removeKey() {
     try {
       keyStore.deleteEntry(keyAlias);
+      keyVersion.incrementAndGet();
     } catch (Exception e) {
       Log.d(TAG, "Remove key failed", e);
     }
   }
+
+  /**
+   * What one purge pass has learned. The key pairs are read from the key store once per pass
+   * rather than once per value, and without the data lock, so that a pass over many values
+   * doesn't hold up reads and writes.
+   */
+  private final class PurgePass {
+    private long keyVersion = -1;
+    @Nullable private KeyPairState keyPair;
+    @Nullable private KeyPairState atRestKeyPair;
+    /** Key ids of values found stale, so that each costs at most one more key store read. */
+    private final Set<Integer> staleKeyIds = new HashSet<>();
+    /** The earliest expiry of a value the pass kept, or {@link Long#MAX_VALUE} if none. */
+    long nextExpiry = Long.MAX_VALUE;
+
+    /**
+     * Returns true if {@code encrypted} can't be decrypted with the current key pair of its
+     * protection. Call under the lock of its name, after reading it.
+     */
+    boolean isStale(ByteString encrypted) throws GeneralSecurityException {
+      boolean atRest = CiphertextHeader.isAtRest(encrypted);
+      if (!keyPair(atRest).isStale(encrypted)) {
+        return false;
+      }
+      if (!CiphertextHeader.hasHeader(encrypted)
+          || !staleKeyIds.add(CiphertextHeader.keyId(encrypted))) {
+        return true;
+      }
+      // Another instance or process may have generated the key pair since the pass read it.
+      reset();
+      if (!keyPair(atRest).isStale(encrypted)) {
+        staleKeyIds.remove(CiphertextHeader.keyId(encrypted));
+        return false;
+      }
+      return true;
+    }
+
+    private KeyPairState keyPair(boolean atRest) throws GeneralSecurityException {
+      // Read again if this instance changed a key pair since, so its old values are purged too.
+      long version = RealWhorlwind.this.keyVersion.get();
+      if (version != keyVersion) {
+        reset();
+        keyVersion = version;
+      }
+      if (atRest) {
+        if (atRestKeyPair == null) {
+          atRestKeyPair = readKeyPair(atRestKeyAlias);
+        }
+        return atRestKeyPair;
+      }
+      if (keyPair == null) {
+        keyPair = readKeyPair(keyAlias);
+      }
+      return keyPair;
+    }
+
+    void kept(long expiresAt) {
+      if (expiresAt != 0) {
+        nextExpiry = Math.min(nextExpiry, expiresAt);
+      }
+    }
+
+    private void reset() {
+      keyPair = null;
+      atRestKeyPair = null;
+    }
+  }
+
+  /**
+   * Reads the key pair under {@code alias} without the data lock. Read {@link #keyVersion} first.
+   */
+  @SuppressWarnings("WeakerAccess") // Used in nested class. Removing synthetic accessor.
+  KeyPairState readKeyPair(String alias) throws GeneralSecurityException {
+    if (!hasValidKey(alias)) {
+      return KeyPairState.INVALID;
+    }
+    Certificate certificate = keyStore.getCertificate(alias);
+    return new KeyPairState(true, isHeaderKey(certificate),
+        CiphertextHeader.keyId(certificate.getPublicKey()));
+  }
+
+  /** A key pair as a {@link PurgePass} read it. */
+  private static final class KeyPairState {
+    /** There is no key pair, or it has been invalidated. Every value is stale. */
+    static final KeyPairState INVALID = new KeyPairState(false, false, 0);
+
+    private final boolean valid;
+    private final boolean headerKey;
+    private final int keyId;
+
+    KeyPairState(boolean valid, boolean headerKey, int keyId) {
+      this.valid = valid;
+      this.headerKey = headerKey;
+      this.keyId = keyId;
+    }
+
+    /** Like {@link RealWhorlwind#isStale}, and also true if the key pair isn't valid. */
+    boolean isStale(ByteString encrypted) {
+      if (!valid) {
+        return true;
+      }
+      if (!CiphertextHeader.hasHeader(encrypted)) {
+        return headerKey;
+      }
+      return CiphertextHeader.keyId(encrypted) != keyId;
+    }
+  }
+
+  /** Reports a write to storage to its callback, once it is counted as done. */
+  private final class PersistObserver implements CompletableObserver {
+    private final String name;
+    private final WriteCallback callback;
+    private final boolean inFlight;
+    /** When the stored value expires, or 0 if it doesn't. */
+    private final long expiresAt;
+
+    PersistObserver(String name, WriteCallback callback, boolean inFlight, long expiresAt) {
+      this.name = name;
+      this.callback = callback;
+      this.inFlight = inFlight;
+      this.expiresAt = expiresAt;
+    }
+
+    @Override public void onSubscribe(Disposable d) {
+    }
+
+    @Override public void onComplete() {
+      finish();
+      sweepAfter(expiresAt);
+      callback.onComplete();
+    }
+
+    @Override public void onError(Throwable e) {
+      finish();
+      callback.onError(e);
+    }
+
+    private void finish() {
+      changed(name);
+      if (inFlight) {
+        writesInFlight.decrementAndGet(nameStripe(name));
+      }
+    }
+  }
 }
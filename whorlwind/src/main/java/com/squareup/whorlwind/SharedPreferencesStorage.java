@@ -17,46 +17,262 @@ package com.squareup.whorlwind;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
 import androidx.annotation.CheckResult;
 import androidx.annotation.NonNull;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import okio.ByteString;
 
-public final class SharedPreferencesStorage implements Storage {
+import static com.squareup.whorlwind.Whorlwind.TAG;
+
+/**
+ * A {@link Storage} backed by {@link SharedPreferences}. Each preferences file is rewritten in full
+ * on every write and kept in memory once loaded, so a large store can be spread across several
+ * files with the {@code shards} constructor parameter. Names are assigned to a shard by their hash,
+ * a write only rewrites its shard, and a shard is only loaded once a name in it is used. Listing or
+ * clearing names loads every shard.
+ */
+public final class SharedPreferencesStorage
+    implements OrderedStorage, BatchStorage, Flushable {
+  /** Controls when writes reach the disk. */
+  public enum Durability {
+    /**
+     * Writes are applied to memory immediately and persisted in the background. Consecutive writes
+     * are coalesced into a single file rewrite. Use {@link #flush()} to wait for them to land.
+     */
+    WRITE_BEHIND,
+
+    /** Writes are persisted before returning. */
+    SYNC,
+
+    /**
+     * Writes are buffered in memory and persisted together once the group commit window elapses.
+     * Writes which haven't been persisted yet are lost if the process dies. Use {@link #flush()}
+     * to persist them early.
+     */
+    GROUP_COMMIT,
+  }
+
+  static final long DEFAULT_GROUP_COMMIT_WINDOW_MS = 100;
+  /** Roughly what a tree node and a short name cost in {@link #index}. */
+  private static final int INDEX_ENTRY_BYTES = 96;
+
   private final Context context;
   private final String name;
+  /** DO NOT use directly! Each is lazily initialized through the {@link #prefs(int)} accessor. */
+  private final SharedPreferences[] shards;
+  private final Durability durability;
+  private final long groupCommitWindowMs;
+  private final Scheduler scheduler;
+
+  /** Guards the group commit buffer and {@link #scheduledCommit}. */
+  private final Object pendingLock = new Object();
+  /** Serializes group commits so they reach the disk in order. */
+  private final Object commitLock = new Object();
+  /** Writes waiting for a group commit. A null value is a pending removal. */
+  private final Map<String, ByteString> pending = new LinkedHashMap<>();
+  private Disposable scheduledCommit;
 
-  /** DO NOT use directly! Lazily initialized through {@link #prefs()} accessor method. */
-  private SharedPreferences prefs;
+  /** Guards {@link #index}. Only held while it is read or updated, never while writing. */
+  private final Object indexLock = new Object();
+  /**
+   * Every name in ascending order. Built on the first ordered query and then maintained as names
+   * are added and removed. Null until then so that apps which never query by prefix don't pay
+   * for it.
+   */
+  private TreeSet<String> index;
+  /**
+   * Registered with the budget. The index can't be partially released, so it is only dropped
+   * under memory pressure and built again by the next ordered query. The preferences themselves
+   * stay in memory for as long as the framework keeps them.
+   */
+  private final MemoryBudget.Trimmable trimmable = new MemoryBudget.Trimmable() {
+    @Override public void trimToSize(long maxBytes) {
+      if (maxBytes == 0) {
+        synchronized (indexLock) {
+          index = null;
+          indexChanged();
+        }
+      }
+    }
+  };
+  private final MemoryBudget.Registration registration;
+  /** What {@link #index} was last reported to retain. Guarded by {@link #indexLock}. */
+  private long indexBytes;
 
   public SharedPreferencesStorage(Context context, String name) {
+    this(context, name, Durability.WRITE_BEHIND);
+  }
+
+  public SharedPreferencesStorage(Context context, String name, Durability durability) {
+    this(context, name, durability, DEFAULT_GROUP_COMMIT_WINDOW_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param groupCommitWindow How long writes are buffered before being persisted together. Only
+   * used with {@link Durability#GROUP_COMMIT}.
+   */
+  public SharedPreferencesStorage(Context context, String name, Durability durability,
+      long groupCommitWindow, TimeUnit unit) {
+    this(context, name, durability, groupCommitWindow, unit, 1);
+  }
+
+  /**
+   * @param shards How many preferences files to spread names across. With 1, the file is named
+   * {@code name}. Otherwise they are named {@code name} followed by a dot and the shard's index.
+   * Changing this for an existing store hides its values, so move them with a
+   * {@link StorageMigration} instead.
+   */
+  public SharedPreferencesStorage(Context context, String name, Durability durability,
+      int shards) {
+    this(context, name, durability, DEFAULT_GROUP_COMMIT_WINDOW_MS, TimeUnit.MILLISECONDS, shards);
+  }
+
+  /**
+   * @param groupCommitWindow How long writes are buffered before being persisted together. Only
+   * used with {@link Durability#GROUP_COMMIT}.
+   * @param shards How many preferences files to spread names across. See
+   * {@link #SharedPreferencesStorage(Context, String, Durability, int)}.
+   */
+  public SharedPreferencesStorage(Context context, String name, Durability durability,
+      long groupCommitWindow, TimeUnit unit, int shards) {
+    this(context, newShards(shards), name, durability, unit.toMillis(groupCommitWindow),
+        Schedulers.io());
+  }
+
+  /** @param shards Preferences for each shard. Null elements are loaded when first used. */
+  SharedPreferencesStorage(Context context, SharedPreferences[] shards, String name,
+      Durability durability, long groupCommitWindowMs, Scheduler scheduler) {
+    if (durability == null) {
+      throw new IllegalArgumentException("durability == null");
+    }
+    if (groupCommitWindowMs < 0) {
+      throw new IllegalArgumentException("groupCommitWindow < 0: " + groupCommitWindowMs);
+    }
     this.context = context;
+    this.shards = shards;
     this.name = name;
+    this.durability = durability;
+    this.groupCommitWindowMs = groupCommitWindowMs;
+    this.scheduler = scheduler;
+    this.registration = MemoryBudget.register(trimmable, false);
   }
 
-  private synchronized SharedPreferences prefs() {
+  private static SharedPreferences[] newShards(int shards) {
+    if (shards <= 0) {
+      throw new IllegalArgumentException("shards <= 0: " + shards);
+    }
+    return new SharedPreferences[shards];
+  }
+
+  private int shardOf(String name) {
+    return (name.hashCode() & Integer.MAX_VALUE) % shards.length;
+  }
+
+  private synchronized SharedPreferences prefs(int shard) {
+    SharedPreferences prefs = shards[shard];
     if (prefs == null) {
-      prefs = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+      String fileName = shards.length == 1 ? name : name + "." + shard;
+      prefs = context.getSharedPreferences(fileName, Context.MODE_PRIVATE);
+      shards[shard] = prefs;
     }
     return prefs;
   }
 
+  private SharedPreferences prefsFor(String name) {
+    return prefs(shardOf(name));
+  }
+
   @Override public void clear() {
-    prefs().edit().clear().apply();
+    if (durability == Durability.GROUP_COMMIT) {
+      // Clearing is rare and drops everything buffered, so don't bother batching it.
+      synchronized (commitLock) {
+        synchronized (pendingLock) {
+          pending.clear();
+        }
+        for (int i = 0; i < shards.length; i++) {
+          commit(prefs(i).edit().clear());
+        }
+      }
+    } else {
+      for (int i = 0; i < shards.length; i++) {
+        save(prefs(i).edit().clear());
+      }
+    }
+
+    synchronized (indexLock) {
+      if (index != null) {
+        // Keep names which were put since their shard was cleared.
+        for (Iterator<String> i = index.iterator(); i.hasNext(); ) {
+          if (!contains(i.next())) {
+            i.remove();
+          }
+        }
+        indexChanged();
+      }
+    }
   }
 
   @Override public void remove(@NonNull String name) {
-    prefs().edit().remove(name).apply();
+    if (durability == Durability.GROUP_COMMIT) {
+      enqueue(name, null);
+    } else {
+      save(prefsFor(name).edit().remove(name));
+    }
+    syncIndex(Collections.singleton(name));
   }
 
   @Override public void put(@NonNull String name, @NonNull ByteString value) {
-    prefs().edit().putString(name, value.base64()).apply();
+    if (durability == Durability.GROUP_COMMIT) {
+      enqueue(name, value);
+    } else {
+      save(prefsFor(name).edit().putString(name, value.base64()));
+    }
+    syncIndex(Collections.singleton(name));
+  }
+
+  /** Writes all of {@code values} with a single write to each shard they touch. */
+  @Override public void putAll(@NonNull Map<String, ByteString> values) {
+    if (durability == Durability.GROUP_COMMIT) {
+      for (Map.Entry<String, ByteString> entry : values.entrySet()) {
+        enqueue(entry.getKey(), entry.getValue());
+      }
+    } else {
+      SharedPreferences.Editor[] editors = new SharedPreferences.Editor[shards.length];
+      for (Map.Entry<String, ByteString> entry : values.entrySet()) {
+        editor(editors, entry.getKey()).putString(entry.getKey(), entry.getValue().base64());
+      }
+      saveAll(editors);
+    }
+    syncIndex(values.keySet());
   }
 
   @CheckResult @Override public ByteString get(@NonNull String name) {
-    String value = prefs().getString(name, null);
+    if (durability == Durability.GROUP_COMMIT) {
+      synchronized (pendingLock) {
+        if (pending.containsKey(name)) {
+          return pending.get(name);
+        }
+      }
+    }
+
+    String value = prefsFor(name).getString(name, null);
     if (value == null) {
       return null;
     }
@@ -65,6 +281,234 @@ public final class SharedPreferencesStorage implements Storage {
   }
 
   @CheckResult @Override public Set<String> names() {
-    return Collections.unmodifiableSet(new LinkedHashSet<>(prefs().getAll().keySet()));
+    Set<String> names = new LinkedHashSet<>();
+    for (int i = 0; i < shards.length; i++) {
+      names.addAll(prefs(i).getAll().keySet());
+    }
+    if (durability == Durability.GROUP_COMMIT) {
+      synchronized (pendingLock) {
+        for (Map.Entry<String, ByteString> entry : pending.entrySet()) {
+          if (entry.getValue() != null) {
+            names.add(entry.getKey());
+          } else {
+            names.remove(entry.getKey());
+          }
+        }
+      }
+    }
+    return Collections.unmodifiableSet(names);
+  }
+
+  @CheckResult @Override public SortedSet<String> namesWithPrefix(@NonNull String prefix) {
+    String end = Prefixes.end(prefix);
+    synchronized (indexLock) {
+      TreeSet<String> index = index();
+      return Collections.unmodifiableSortedSet(new TreeSet<>(end != null //
+          ? index.subSet(prefix, true, end, false) //
+          : index.tailSet(prefix, true)));
+    }
+  }
+
+  @CheckResult @Override public SortedSet<String> namesInRange(@NonNull String fromInclusive,
+      @NonNull String toExclusive) {
+    if (fromInclusive.compareTo(toExclusive) > 0) {
+      throw new IllegalArgumentException(
+          "fromInclusive > toExclusive: " + fromInclusive + " > " + toExclusive);
+    }
+    synchronized (indexLock) {
+      return Collections.unmodifiableSortedSet(
+          new TreeSet<>(index().subSet(fromInclusive, true, toExclusive, false)));
+    }
+  }
+
+  @Override public void removeWithPrefix(@NonNull String prefix) {
+    SortedSet<String> names = namesWithPrefix(prefix);
+    if (names.isEmpty()) {
+      return;
+    }
+
+    if (durability == Durability.GROUP_COMMIT) {
+      for (String name : names) {
+        enqueue(name, null);
+      }
+    } else {
+      SharedPreferences.Editor[] editors = new SharedPreferences.Editor[shards.length];
+      for (String name : names) {
+        editor(editors, name).remove(name);
+      }
+      saveAll(editors);
+    }
+    syncIndex(names);
+  }
+
+  /** Must be called while holding {@link #indexLock}. */
+  private TreeSet<String> index() {
+    if (index == null) {
+      index = new TreeSet<>(names());
+      indexChanged();
+    }
+    return index;
+  }
+
+  /**
+   * Adds each of {@code names} to {@link #index} if it is stored and removes it otherwise. Called
+   * after writing rather than around it, so that writes to different shards don't wait for each
+   * other. The last write to a name to get here sees the result of every write before it, so the
+   * index ends up matching the stored names whatever order writes finish in.
+   */
+  private void syncIndex(Collection<String> names) {
+    synchronized (indexLock) {
+      if (index == null) {
+        return;
+      }
+      for (String name : names) {
+        if (contains(name)) {
+          index.add(name);
+        } else {
+          index.remove(name);
+        }
+      }
+      indexChanged();
+    }
+  }
+
+  /** Returns true if {@code name} is stored, including by a write waiting for a group commit. */
+  private boolean contains(String name) {
+    if (durability == Durability.GROUP_COMMIT) {
+      synchronized (pendingLock) {
+        if (pending.containsKey(name)) {
+          return pending.get(name) != null;
+        }
+      }
+    }
+    return prefsFor(name).contains(name);
+  }
+
+  /** Reports the change in {@link #index}'s size to the budget. Hold {@link #indexLock}. */
+  private void indexChanged() {
+    long bytes = index != null ? (long) index.size() * INDEX_ENTRY_BYTES : 0;
+    registration.adjust(bytes - indexBytes);
+    indexBytes = bytes;
+  }
+
+  /** Blocks until every write made before this call has been persisted. */
+  @Override public void flush() throws IOException {
+    commitPending();
+
+    // Committing waits for every write which was applied before it, even if it has no changes.
+    // Shards which were never loaded can't have any.
+    for (SharedPreferences prefs : loadedShards()) {
+      if (!prefs.edit().commit()) {
+        throw new IOException("Failed to flush " + name);
+      }
+    }
+  }
+
+  private synchronized List<SharedPreferences> loadedShards() {
+    List<SharedPreferences> loaded = new ArrayList<>(shards.length);
+    for (SharedPreferences prefs : shards) {
+      if (prefs != null) {
+        loaded.add(prefs);
+      }
+    }
+    return loaded;
+  }
+
+  /** Returns the editor for the shard of {@code name}, creating it if needed. */
+  private SharedPreferences.Editor editor(SharedPreferences.Editor[] editors, String name) {
+    int shard = shardOf(name);
+    if (editors[shard] == null) {
+      editors[shard] = prefs(shard).edit();
+    }
+    return editors[shard];
+  }
+
+  private void saveAll(SharedPreferences.Editor[] editors) {
+    for (SharedPreferences.Editor editor : editors) {
+      if (editor != null) {
+        save(editor);
+      }
+    }
+  }
+
+  private void save(SharedPreferences.Editor editor) {
+    if (durability == Durability.SYNC) {
+      commit(editor);
+    } else {
+      editor.apply();
+    }
+  }
+
+  private void commit(SharedPreferences.Editor editor) {
+    if (!editor.commit()) {
+      throw new IllegalStateException("Failed to write to " + name);
+    }
+  }
+
+  private void enqueue(String name, ByteString value) {
+    synchronized (pendingLock) {
+      pending.put(name, value);
+      if (scheduledCommit == null) {
+        scheduledCommit = scheduler.scheduleDirect(new Runnable() {
+          @Override public void run() {
+            synchronized (pendingLock) {
+              scheduledCommit = null;
+            }
+            try {
+              commitPending();
+            } catch (IOException e) {
+              Log.w(TAG, "Group commit failed. Retrying in the next window.", e);
+              synchronized (pendingLock) {
+                if (scheduledCommit == null && !pending.isEmpty()) {
+                  scheduledCommit =
+                      scheduler.scheduleDirect(this, groupCommitWindowMs, TimeUnit.MILLISECONDS);
+                }
+              }
+            }
+          }
+        }, groupCommitWindowMs, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Persists everything in the group commit buffer with a single write to each shard it touches.
+   * Entries stay in the buffer, and therefore visible to readers, until every shard's commit
+   * succeeds.
+   */
+  private void commitPending() throws IOException {
+    synchronized (commitLock) {
+      Map<String, ByteString> batch;
+      synchronized (pendingLock) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        batch = new LinkedHashMap<>(pending);
+      }
+
+      SharedPreferences.Editor[] editors = new SharedPreferences.Editor[shards.length];
+      for (Map.Entry<String, ByteString> entry : batch.entrySet()) {
+        ByteString value = entry.getValue();
+        if (value != null) {
+          editor(editors, entry.getKey()).putString(entry.getKey(), value.base64());
+        } else {
+          editor(editors, entry.getKey()).remove(entry.getKey());
+        }
+      }
+      for (SharedPreferences.Editor editor : editors) {
+        if (editor != null && !editor.commit()) {
+          throw new IOException("Failed to write to " + name);
+        }
+      }
+
+      synchronized (pendingLock) {
+        for (Map.Entry<String, ByteString> entry : batch.entrySet()) {
+          // Keep anything which was overwritten while the commit was in flight.
+          if (pending.get(entry.getKey()) == entry.getValue()) {
+            pending.remove(entry.getKey());
+          }
+        }
+      }
+    }
   }
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import okio.ByteString;
+
+/**
+ * A {@link Storage} backed by a SQLite database. Values are stored as raw blobs and names are
+ * indexed, so this scales to many more entries than {@link SharedPreferencesStorage} which keeps
+ * everything in memory and rewrites a single file on every change.
+ *
+ * <p>Names are ordered by SQLite's binary collation, which matches {@link String#compareTo} for
+ * every name without characters outside the Basic Multilingual Plane.
+ */
+public final class SqliteStorage implements OrderedStorage, BatchStorage {
+  private static final int VERSION = 1;
+  private static final String TABLE = "entries";
+  private static final String COLUMN_NAME = "name";
+  private static final String COLUMN_VALUE = "value";
+
+  private final OpenHelper helper;
+
+  /**
+   * @param name The name of the database file. The database is not opened until it is first
+   * used.
+   */
+  public SqliteStorage(Context context, String name) {
+    helper = new OpenHelper(context, name);
+  }
+
+  @Override public void clear() {
+    helper.getWritableDatabase().delete(TABLE, null, null);
+  }
+
+  @Override public void remove(@NonNull String name) {
+    helper.getWritableDatabase().delete(TABLE, COLUMN_NAME + " = ?", new String[] { name });
+  }
+
+  @Override public void put(@NonNull String name, @NonNull ByteString value) {
+    ContentValues values = new ContentValues(2);
+    values.put(COLUMN_NAME, name);
+    values.put(COLUMN_VALUE, value.toByteArray());
+    helper.getWritableDatabase()
+        .insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  /** Writes all of {@code values} in a single transaction. */
+  @Override public void putAll(@NonNull Map<String, ByteString> values) {
+    SQLiteDatabase db = helper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE //
+          + " (" + COLUMN_NAME + ", " + COLUMN_VALUE + ") VALUES (?, ?)");
+      try {
+        for (Map.Entry<String, ByteString> entry : values.entrySet()) {
+          insert.bindString(1, entry.getKey());
+          insert.bindBlob(2, entry.getValue().toByteArray());
+          insert.executeInsert();
+        }
+      } finally {
+        insert.close();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  @CheckResult @Override public ByteString get(@NonNull String name) {
+    Cursor cursor = helper.getReadableDatabase()
+        .query(TABLE, new String[] { COLUMN_VALUE }, COLUMN_NAME + " = ?", new String[] { name },
+            null, null, null);
+    try {
+      if (!cursor.moveToFirst()) {
+        return null;
+      }
+      return ByteString.of(cursor.getBlob(0));
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @CheckResult @Override public Set<String> names() {
+    Cursor cursor = helper.getReadableDatabase()
+        .query(TABLE, new String[] { COLUMN_NAME }, null, null, null, null, COLUMN_NAME);
+    try {
+      Set<String> names = new LinkedHashSet<>(cursor.getCount());
+      while (cursor.moveToNext()) {
+        names.add(cursor.getString(0));
+      }
+      return Collections.unmodifiableSet(names);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Returns up to {@code limit} names in ascending order which sort strictly after {@code after}.
+   * Pass null to start from the beginning and the last name of the previous page to continue.
+   */
+  @CheckResult public List<String> names(@Nullable String after, int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("limit <= 0: " + limit);
+    }
+
+    String selection = after != null ? COLUMN_NAME + " > ?" : null;
+    String[] selectionArgs = after != null ? new String[] { after } : null;
+    Cursor cursor = helper.getReadableDatabase()
+        .query(TABLE, new String[] { COLUMN_NAME }, selection, selectionArgs, null, null,
+            COLUMN_NAME, Integer.toString(limit));
+    try {
+      List<String> names = new ArrayList<>(cursor.getCount());
+      while (cursor.moveToNext()) {
+        names.add(cursor.getString(0));
+      }
+      return Collections.unmodifiableList(names);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @CheckResult @Override public SortedSet<String> namesWithPrefix(@NonNull String prefix) {
+    String end = Prefixes.end(prefix);
+    return end != null ? namesInRange(prefix, end) : namesWhere(COLUMN_NAME + " >= ?", prefix);
+  }
+
+  @CheckResult @Override public SortedSet<String> namesInRange(@NonNull String fromInclusive,
+      @NonNull String toExclusive) {
+    if (fromInclusive.compareTo(toExclusive) > 0) {
+      throw new IllegalArgumentException(
+          "fromInclusive > toExclusive: " + fromInclusive + " > " + toExclusive);
+    }
+    return namesWhere(COLUMN_NAME + " >= ? AND " + COLUMN_NAME + " < ?", fromInclusive,
+        toExclusive);
+  }
+
+  @Override public void removeWithPrefix(@NonNull String prefix) {
+    String end = Prefixes.end(prefix);
+    SQLiteDatabase db = helper.getWritableDatabase();
+    if (end != null) {
+      db.delete(TABLE, COLUMN_NAME + " >= ? AND " + COLUMN_NAME + " < ?",
+          new String[] { prefix, end });
+    } else {
+      db.delete(TABLE, COLUMN_NAME + " >= ?", new String[] { prefix });
+    }
+  }
+
+  private SortedSet<String> namesWhere(String selection, String... selectionArgs) {
+    Cursor cursor = helper.getReadableDatabase()
+        .query(TABLE, new String[] { COLUMN_NAME }, selection, selectionArgs, null, null,
+            COLUMN_NAME);
+    try {
+      SortedSet<String> names = new TreeSet<>();
+      while (cursor.moveToNext()) {
+        names.add(cursor.getString(0));
+      }
+      return Collections.unmodifiableSortedSet(names);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private static final class OpenHelper extends SQLiteOpenHelper {
+    OpenHelper(Context context, String name) {
+      super(context, name, null, VERSION);
+    }
+
+    @Override public void onCreate(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE " + TABLE + " (" //
+          + COLUMN_NAME + " TEXT NOT NULL PRIMARY KEY, " //
+          + COLUMN_VALUE + " BLOB NOT NULL)");
+    }
+
+    @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import io.reactivex.Single;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.HashingSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
+
+/**
+ * Copies every value in a {@link Storage} to and from a single binary archive, such as for a
+ * backup or to move a store between storages in one piece. Values stay encrypted, including their
+ * key ids, versions and expiry times, so they can only be read on the same device through a
+ * {@link Whorlwind} with the same key alias.
+ *
+ * <pre>
+ * magic     4 bytes  "WhAr"
+ * version   1 byte   {@link #VERSION}
+ * entries            Each a 4 byte name length, the UTF-8 name, a 4 byte value length and the
+ *                    stored value.
+ * end       4 bytes  -1, in place of a name length.
+ * count     4 bytes  The number of entries.
+ * checksum 32 bytes  SHA-256 of everything before it.
+ * </pre>
+ *
+ * <p>Nothing else may write to the storage while it is being exported or imported.
+ */
+public final class StorageArchive {
+  static final int VERSION = 1;
+  private static final ByteString MAGIC = ByteString.encodeUtf8("WhAr");
+  private static final int END = -1;
+
+  private final Storage storage;
+
+  public StorageArchive(@NonNull Storage storage) {
+    if (storage == null) {
+      throw new IllegalArgumentException("storage == null");
+    }
+    this.storage = storage;
+  }
+
+  /**
+   * Writes every value to {@code sink} on the subscribing thread, one at a time, and emits how
+   * many were written. The sink is flushed but not closed.
+   */
+  @CheckResult public Single<Integer> exportTo(@NonNull final Sink sink) {
+    return Single.fromCallable(new Callable<Integer>() {
+      @Override public Integer call() throws IOException {
+        HashingSink hashingSink = HashingSink.sha256(sink);
+        BufferedSink out = Okio.buffer(hashingSink);
+        out.write(MAGIC).writeByte(VERSION);
+        int count = 0;
+        for (String name : storage.names()) {
+          ByteString value = Storages.peek(storage, name);
+          if (value == null) {
+            continue;
+          }
+          ByteString encodedName = ByteString.encodeUtf8(name);
+          out.writeInt(encodedName.size()).write(encodedName);
+          out.writeInt(value.size()).write(value);
+          count++;
+        }
+        out.writeInt(END).writeInt(count);
+        out.flush();
+
+        // The checksum isn't part of what it covers.
+        Buffer checksum = new Buffer().write(hashingSink.hash());
+        sink.write(checksum, checksum.size());
+        sink.flush();
+        return count;
+      }
+    });
+  }
+
+  /**
+   * Reads every value from {@code source} on the subscribing thread and emits how many were
+   * imported. Values replace those with the same name and other values are kept. The whole
+   * archive is read and its checksum verified before anything is written, so a truncated or
+   * corrupt archive fails with an {@link IOException} and leaves the storage untouched. Values
+   * are then written together, with a single write if the storage supports it. The source is not
+   * closed.
+   */
+  @CheckResult public Single<Integer> importFrom(@NonNull final Source source) {
+    return Single.fromCallable(new Callable<Integer>() {
+      @Override public Integer call() throws IOException {
+        BufferedSource in = Okio.buffer(source);
+        // Everything which is read is also written here, so that the checksum covers exactly the
+        // bytes before it even though the source is read ahead.
+        HashingSink hashingSink = HashingSink.sha256(Okio.blackhole());
+        BufferedSink hashed = Okio.buffer(hashingSink);
+
+        ByteString magic = in.readByteString(MAGIC.size());
+        if (!magic.equals(MAGIC)) {
+          throw new ProtocolException("Not an archive: " + magic.hex());
+        }
+        int version = in.readByte() & 0xff;
+        if (version != VERSION) {
+          throw new ProtocolException("Unsupported archive version: " + version);
+        }
+        hashed.write(magic).writeByte(version);
+
+        Map<String, ByteString> values = new LinkedHashMap<>();
+        while (true) {
+          int nameLength = readLength(in, hashed);
+          if (nameLength == END) {
+            break;
+          }
+          ByteString name = in.readByteString(nameLength);
+          hashed.write(name);
+          ByteString value = in.readByteString(readLength(in, hashed));
+          hashed.write(value);
+          values.put(name.utf8(), value);
+        }
+        int count = in.readInt();
+        hashed.writeInt(count);
+        hashed.flush();
+
+        ByteString checksum = in.readByteString(32);
+        if (!checksum.equals(hashingSink.hash())) {
+          throw new ProtocolException("Archive checksum mismatch");
+        }
+        if (count != values.size()) {
+          throw new ProtocolException("Expected " + count + " entries but was " + values.size());
+        }
+
+        Storages.putAll(storage, values);
+        return values.size();
+      }
+    });
+  }
+
+  /** Returns a length or {@link #END}, which is also added to {@code hashed}. */
+  private static int readLength(BufferedSource in, BufferedSink hashed) throws IOException {
+    int length = in.readInt();
+    hashed.writeInt(length);
+    if (length < 0 && length != END) {
+      throw new ProtocolException("Corrupt archive: length " + length);
+    }
+    return length;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
+import io.reactivex.ObservableOnSubscribe;
+import java.io.Flushable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import okio.ByteString;
+
+/**
+ * Moves every value from one {@link Storage} to another, such as from
+ * {@link SharedPreferencesStorage} to {@link SqliteStorage}. Values stay encrypted with the same
+ * key, so they can be read through a {@link Whorlwind} created with the new storage and the same
+ * key alias.
+ *
+ * <p>Values are moved in batches so only one batch is held in memory at a time. Each batch is
+ * written to the destination, read back to verify it, flushed if the destination is
+ * {@link Flushable} and only then removed from the source. If the process dies part way, the
+ * values which were not removed from the source are still there and subscribing again picks up
+ * where the previous attempt left off.
+ *
+ * <p>Nothing else may write to either storage while a migration is running.
+ */
+public final class StorageMigration {
+  /** @see StorageMigration#migrate() */
+  public static final class Progress {
+    /** The number of values moved so far. */
+    public final int migrated;
+    /** The number of values which were in the source when the migration started. */
+    public final int total;
+
+    Progress(int migrated, int total) {
+      this.migrated = migrated;
+      this.total = total;
+    }
+
+    @Override public String toString() {
+      return "Progress{migrated=" + migrated + ", total=" + total + '}';
+    }
+  }
+
+  static final int DEFAULT_BATCH_SIZE = 100;
+
+  private final Storage source;
+  private final Storage destination;
+  private final int batchSize;
+
+  public StorageMigration(@NonNull Storage source, @NonNull Storage destination) {
+    this(source, destination, DEFAULT_BATCH_SIZE);
+  }
+
+  /** @param batchSize The maximum number of values to move at once. */
+  public StorageMigration(@NonNull Storage source, @NonNull Storage destination, int batchSize) {
+    if (source == null) {
+      throw new IllegalArgumentException("source == null");
+    }
+    if (destination == null) {
+      throw new IllegalArgumentException("destination == null");
+    }
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize <= 0: " + batchSize);
+    }
+    this.source = source;
+    this.destination = destination;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Moves the values on the subscribing thread, emitting {@link Progress} after every batch.
+   * Disposing stops the migration between batches. A value which can't be verified in the
+   * destination fails the stream and is left in the source.
+   */
+  @CheckResult public Observable<Progress> migrate() {
+    return Observable.create(new ObservableOnSubscribe<Progress>() {
+      @Override public void subscribe(ObservableEmitter<Progress> emitter) throws Exception {
+        Set<String> names = source.names();
+        int total = names.size();
+        int migrated = 0;
+
+        Iterator<String> iterator = names.iterator();
+        Map<String, ByteString> batch = new LinkedHashMap<>();
+        while (iterator.hasNext() && !emitter.isDisposed()) {
+          batch.clear();
+          while (iterator.hasNext() && batch.size() < batchSize) {
+            String name = iterator.next();
+            ByteString value = Storages.peek(source, name);
+            if (value != null) {
+              batch.put(name, value);
+            }
+          }
+
+          migrated += moveBatch(batch);
+          emitter.onNext(new Progress(migrated, total));
+        }
+        emitter.onComplete();
+      }
+    });
+  }
+
+  private int moveBatch(Map<String, ByteString> batch) throws Exception {
+    Storages.putAll(destination, batch);
+
+    for (Map.Entry<String, ByteString> entry : batch.entrySet()) {
+      if (!entry.getValue().equals(Storages.peek(destination, entry.getKey()))) {
+        throw new IllegalStateException("Failed to verify " + entry.getKey());
+      }
+    }
+
+    // Only remove from the source once the destination has the values durably.
+    if (destination instanceof Flushable) {
+      ((Flushable) destination).flush();
+    }
+    for (String name : batch.keySet()) {
+      source.remove(name);
+    }
+    return batch.size();
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.Map;
+import okio.ByteString;
+
+final class Storages {
+  /**
+   * Writes all of {@code values} to {@code storage}, as a single write if it is a
+   * {@link BatchStorage} and one write per value otherwise.
+   */
+  static void putAll(@NonNull Storage storage, @NonNull Map<String, ByteString> values) {
+    if (storage instanceof BatchStorage) {
+      ((BatchStorage) storage).putAll(values);
+    } else {
+      for (Map.Entry<String, ByteString> entry : values.entrySet()) {
+        storage.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Returns the value of {@code name} in {@code storage} for maintenance, which doesn't count as a
+   * use of the value if the storage tracks them.
+   */
+  @Nullable static ByteString peek(@NonNull Storage storage, @NonNull String name) {
+    if (storage instanceof PeekableStorage) {
+      return ((PeekableStorage) storage).peek(name);
+    }
+    return storage.get(name);
+  }
+
+  private Storages() {
+    throw new AssertionError("No instances.");
+  }
+}
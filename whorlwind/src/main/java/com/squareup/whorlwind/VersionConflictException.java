@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+/**
+ * Signals that {@link Whorlwind#compareAndWrite(String, long, okio.ByteString) compareAndWrite()}
+ * didn't write because the stored value had changed since it was read.
+ */
+public final class VersionConflictException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  public final long expectedVersion;
+  /** The version of the stored value, or {@link Whorlwind#NO_VERSION} if there is none. */
+  public final long actualVersion;
+
+  public VersionConflictException(long expectedVersion, long actualVersion) {
+    super("Expected version " + expectedVersion + " but was " + actualVersion);
+    this.expectedVersion = expectedVersion;
+    this.actualVersion = actualVersion;
+  }
+}
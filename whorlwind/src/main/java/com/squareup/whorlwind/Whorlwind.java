@@ -18,33 +18,62 @@ package com.squareup.whorlwind;
 import android.content.Context;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
-import android.security.keystore.KeyProperties;
+import android.os.Handler;
 import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import android.util.Log;
 import com.squareup.whorlwind.ReadResult.ReadState;
 import io.reactivex.Completable;
+import io.reactivex.CompletableEmitter;
+import io.reactivex.CompletableOnSubscribe;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
-import java.security.KeyFactory;
-import java.security.KeyPairGenerator;
-import java.security.KeyStore;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+import java.util.concurrent.TimeUnit;
 import okio.ByteString;
 
 public abstract class Whorlwind {
   static final String TAG = "Whorlwind";
 
+  /**
+   * The version of a name which has no value. Pass it to
+   * {@link #compareAndWrite(String, long, ByteString) compareAndWrite()} to only write if nothing
+   * has been stored yet.
+   */
+  public static final long NO_VERSION = 0;
+
   public static Whorlwind create(Context context, Storage storage, String keyAlias) {
-    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
-      return new NullWhorlwind();
-    }
+    return new Builder(context, storage, keyAlias).build();
+  }
+
+  /**
+   * Creates an instance which persists through {@code storage}. Use this over
+   * {@link #create(Context, Storage, String)} when your storage can perform non-blocking I/O.
+   */
+  public static Whorlwind create(Context context, AsyncStorage storage, String keyAlias) {
+    return new Builder(context, storage, keyAlias).build();
+  }
 
-    return createRealWhorlwind(context, storage, keyAlias);
+  /**
+   * Returns a process-wide scheduler for cryptographic work with one thread per CPU core. Unlike
+   * {@link io.reactivex.schedulers.Schedulers#io() Schedulers.io()}, bursts of work are queued
+   * instead of each spawning another thread.
+   *
+   * @see Builder#cryptoScheduler(Scheduler)
+   */
+  @NonNull public static Scheduler cryptoScheduler() {
+    return CryptoScheduler.get();
   }
 
   @RequiresApi(Build.VERSION_CODES.M)
-  private static Whorlwind createRealWhorlwind(Context context, Storage storage, String keyAlias) {
+  static Whorlwind createRealWhorlwind(Builder builder) {
     try {
-      FingerprintManager fingerprintManager = context.getSystemService(FingerprintManager.class);
+      FingerprintManager fingerprintManager =
+          builder.context.getSystemService(FingerprintManager.class);
       if (fingerprintManager == null) {
         Log.w(TAG, "No fingerprint manager.");
         return new NullWhorlwind();
@@ -52,17 +81,9 @@ public abstract class Whorlwind {
 
       if (!isHardwareDetected(fingerprintManager)) return new NullWhorlwind();
 
-      KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
-      keyStore.load(null); // Ensure the key store can be loaded before continuing.
-
-      KeyPairGenerator keyGenerator =
-          KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_RSA, "AndroidKeyStore");
-      KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+      KeyStoreRegistry registry = KeyStoreRegistry.get();
 
-      RealWhorlwind.createCipher(); // If this doesn't throw, the cipher we need is available.
-
-      return new RealWhorlwind(context, fingerprintManager, storage, keyAlias, keyStore,
-          keyGenerator, keyFactory);
+      return new RealWhorlwind(builder, fingerprintManager, registry);
     } catch (Exception e) {
       Log.w(TAG, "Cannot store securely.", e);
       return new NullWhorlwind();
@@ -105,20 +126,317 @@ public abstract class Whorlwind {
   public abstract boolean canStoreSecurely();
 
   /**
-   * Writes a value to secure storage. Must check {@link #canStoreSecurely()} before subscribing.
+   * Writes a value to secure storage with {@link Protection#AUTHENTICATED AUTHENTICATED}
+   * protection. Must check {@link #canStoreSecurely()} before subscribing.
+   */
+  @CheckResult
+  public Completable write(String name, ByteString value) {
+    return write(name, value, Protection.AUTHENTICATED);
+  }
+
+  /**
+   * Writes a value to secure storage with {@code protection}. Values of either protection share
+   * the same {@link Storage} and a name holds a single value, so writing replaces a value of the
+   * other protection. Must check {@link #canStoreSecurely()} before subscribing.
+   */
+  @CheckResult
+  public Completable write(String name, ByteString value, Protection protection) {
+    return write(name, value, protection, 0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes a value to secure storage with {@code protection} which expires after {@code ttl}.
+   * Once expired, the value reads as if it was never written, without touching the key store or
+   * the fingerprint reader, and it is removed from storage in the background. Pass 0 for a value
+   * which never expires. Expiry is tracked in milliseconds, rounding {@code ttl} up. Must check
+   * {@link #canStoreSecurely()} before subscribing.
+   *
+   * @see #write(String, ByteString, Protection)
    */
   @CheckResult
-  public abstract Completable write(String name, ByteString value);
+  public Completable write(final String name, final ByteString value,
+      final Protection protection, final long ttl, final TimeUnit unit) {
+    return Completable.create(new CompletableOnSubscribe() {
+      @Override public void subscribe(final CompletableEmitter emitter) {
+        write(name, value, protection, ttl, unit, new WriteCallback() {
+          @Override public void onComplete() {
+            emitter.onComplete();
+          }
+
+          @Override public void onError(@NonNull Throwable error) {
+            emitter.onError(error);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Writes a value to secure storage like {@link #write(String, ByteString, Protection)}, without
+   * RxJava. The write starts immediately, on this thread unless a
+   * {@link Builder#cryptoScheduler(Scheduler) crypto scheduler} was set, and {@code callback} is
+   * called once it is done. Pass a null {@code value} to remove the value. Must check
+   * {@link #canStoreSecurely()} first.
+   */
+  public void write(@NonNull String name, @Nullable ByteString value,
+      @NonNull Protection protection, @NonNull WriteCallback callback) {
+    write(name, value, protection, 0, TimeUnit.MILLISECONDS, callback);
+  }
+
+  /**
+   * Writes a value to secure storage like
+   * {@link #write(String, ByteString, Protection, long, TimeUnit)}, without RxJava.
+   *
+   * @see #write(String, ByteString, Protection, WriteCallback)
+   */
+  public abstract void write(@NonNull String name, @Nullable ByteString value,
+      @NonNull Protection protection, long ttl, @NonNull TimeUnit unit,
+      @NonNull WriteCallback callback);
+
+  /**
+   * Writes a value to secure storage with {@link Protection#AUTHENTICATED AUTHENTICATED}
+   * protection, but only if the stored value's version is still {@code expectedVersion}.
+   *
+   * @see #compareAndWrite(String, long, ByteString, Protection)
+   */
+  @CheckResult
+  public Completable compareAndWrite(String name, long expectedVersion, ByteString value) {
+    return compareAndWrite(name, expectedVersion, value, Protection.AUTHENTICATED);
+  }
+
+  /**
+   * Writes a value to secure storage with {@code protection}, but only if the version of the
+   * stored value is still {@code expectedVersion}. Otherwise, fails with a
+   * {@link VersionConflictException} and leaves the stored value as it is.
+   *
+   * <p>Every write gives a value a new version, which is reported in {@link ReadResult#version}.
+   * To update a value without losing a concurrent update, read it, compute the new value and
+   * pass it here with the version which was read. On a conflict, read again and retry. Pass
+   * {@link #NO_VERSION} to only write if there is no value, or to only remove a value which has
+   * since been written if {@code value} is null. A value which is treated as absent, such as one
+   * encrypted with a key which has since been invalidated, has no version.
+   *
+   * <p>The comparison and the store are atomic with respect to every other write of the name
+   * through an instance with the same key alias in this process. Values are encrypted before the
+   * comparison and writers of different names rarely wait for each other. An unconditional write
+   * to an {@link AsyncStorage} is stored without waiting, so if every writer of a name relies on
+   * versions, they should all use this method. Writes from other processes are not ordered with
+   * this one. Must check {@link #canStoreSecurely()} before subscribing.
+   */
+  @CheckResult
+  public Completable compareAndWrite(final String name, final long expectedVersion,
+      final ByteString value, final Protection protection) {
+    return Completable.create(new CompletableOnSubscribe() {
+      @Override public void subscribe(final CompletableEmitter emitter) {
+        compareAndWrite(name, expectedVersion, value, protection, new WriteCallback() {
+          @Override public void onComplete() {
+            emitter.onComplete();
+          }
+
+          @Override public void onError(@NonNull Throwable error) {
+            emitter.onError(error);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Writes a value to secure storage like
+   * {@link #compareAndWrite(String, long, ByteString, Protection)}, without RxJava. A conflict is
+   * reported to {@code callback} as a {@link VersionConflictException}.
+   */
+  public abstract void compareAndWrite(@NonNull String name, long expectedVersion,
+      @Nullable ByteString value, @NonNull Protection protection,
+      @NonNull WriteCallback callback);
+
+  /**
+   * Completes once every write which completed before subscription has been persisted by the
+   * underlying storage.
+   *
+   * @see SharedPreferencesStorage.Durability
+   */
+  @CheckResult
+  public abstract Completable flush();
 
   /**
    * Reads a value from secure storage. If no value is found, a result with a {@code state} of
-   * {@link ReadState#READY READY} and a null {@code value} will be emitted. Otherwise, a result
-   * with a {@code state} of {@link ReadState#NEEDS_AUTH NEEDS_AUTH} will be emitted and the
-   * fingerprint reader will be activated. Future events from the fingerprint reader will be
-   * emitted to the stream.
+   * {@link ReadState#READY READY} and a null {@code value} will be emitted. A value written with
+   * {@link Protection#AT_REST AT_REST} protection is emitted as {@link ReadState#READY READY}
+   * straight away without activating the fingerprint reader. Otherwise, a result with a
+   * {@code state} of {@link ReadState#NEEDS_AUTH NEEDS_AUTH} will be emitted and the fingerprint
+   * reader will be activated. Future events from the fingerprint reader will be emitted to the
+   * stream.
    *
    * Must check {@link #canStoreSecurely()} before subscribing.
    */
   @CheckResult
-  public abstract Observable<ReadResult> read(String name);
+  public Observable<ReadResult> read(final String name) {
+    return Observable.create(new ReadOnSubscribe() {
+      @Override Cancelable start(ReadCallback callback) {
+        return read(name, callback);
+      }
+    });
+  }
+
+  /**
+   * Reads a value from secure storage like {@link #read(String)}, without RxJava. The value is
+   * loaded on this thread and every state is reported to {@code callback}. A missing value or one
+   * with {@link Protection#AT_REST AT_REST} protection is reported before this returns.
+   *
+   * Must check {@link #canStoreSecurely()} first.
+   */
+  @NonNull public abstract Cancelable read(@NonNull String name, @NonNull ReadCallback callback);
+
+  /**
+   * Does the work {@link #read(String)} has to do before it can activate the fingerprint reader:
+   * preparing the key store, initializing the cipher and loading the encrypted value. Subscribe
+   * ahead of time, such as when a screen which may need the value is shown, so that the reader
+   * is activated as soon as {@link PreparedRead#read()} is subscribed to.
+   *
+   * <p>A preparation is only used once and only if the value hasn't been written and the key
+   * hasn't changed since it was made. Otherwise {@link PreparedRead#read()} prepares again.
+   * Unused preparations expire after 30 seconds, or when {@link PreparedRead#release()} is
+   * called.
+   *
+   * Must check {@link #canStoreSecurely()} before subscribing.
+   */
+  @CheckResult
+  public abstract Single<PreparedRead> prepareRead(String name);
+
+  /**
+   * Reads every value in secure storage, in the order returned from {@link Storage#names()}. Each
+   * value goes through the same states as {@link #read(String)} and every state is emitted as an
+   * {@link Entry} tagged with the value's name.
+   *
+   * <p>Values are only read as they are requested. The next value is not loaded and the
+   * fingerprint reader is not activated for it until downstream has requested more entries and
+   * the previous value has reached its last state, so only one ciphertext is held in memory at a
+   * time. States of the current value which arrive before they are requested are held until they
+   * are. The names are loaded on subscription. The key is bound to a single operation per
+   * authentication, so each value requires its own fingerprint read.
+   *
+   * Must check {@link #canStoreSecurely()} before subscribing.
+   */
+  @CheckResult
+  public abstract Flowable<Entry> readAll();
+
+  /**
+   * Returns the total time the fingerprint reader has been active for reads through this
+   * instance. A read which is still scanning is only counted once the reader stops.
+   */
+  public abstract long sensorActiveTimeMillis();
+
+  /**
+   * Returns how many times the fingerprint reader was activated for reads through this instance.
+   * A read activates the reader again each time it resumes after being paused.
+   *
+   * @see Builder#sensorActive(Observable)
+   */
+  public abstract int sensorActivationCount();
+
+  public static final class Builder {
+    final Context context;
+    final AsyncStorage storage;
+    final String keyAlias;
+    @Nullable Scheduler cryptoScheduler;
+    long sensorTimeoutMs;
+    @Nullable Observable<Boolean> sensorActive;
+    Scheduler sensorScheduler = Schedulers.computation();
+    /** Null for {@link CryptoScheduler}, which isn't created until it is needed. */
+    @Nullable Scheduler maintenanceScheduler;
+    /** Null for {@link CryptoScheduler}, which isn't created until it is needed. */
+    @Nullable Scheduler decryptScheduler;
+    @Nullable Handler callbackHandler;
+    /** Null to post decrypted values to {@link #callbackHandler}'s thread. */
+    @Nullable Scheduler resultScheduler;
+
+    public Builder(@NonNull Context context, @NonNull Storage storage, @NonNull String keyAlias) {
+      this(context, new BlockingAsyncStorage(storage), keyAlias);
+    }
+
+    public Builder(@NonNull Context context, @NonNull AsyncStorage storage,
+        @NonNull String keyAlias) {
+      this.context = context;
+      this.storage = storage;
+      this.keyAlias = keyAlias;
+    }
+
+    /**
+     * Runs encryption in {@link Whorlwind#write(String, ByteString)} and decryption after a
+     * successful fingerprint read on {@code scheduler}. By default, encryption happens on the
+     * subscribing thread and decryption on {@link Whorlwind#cryptoScheduler()}, so that it never
+     * runs on the thread which delivers the fingerprint callbacks.
+     *
+     * @see #cryptoScheduler()
+     */
+    @NonNull public Builder cryptoScheduler(@Nullable Scheduler scheduler) {
+      this.cryptoScheduler = scheduler;
+      return this;
+    }
+
+    /**
+     * Decrypts values on {@code scheduler} after a successful fingerprint read, and then reports
+     * them on the {@linkplain #callbackHandler(Handler) callback thread}. Decryption waits for the
+     * key store, so it shouldn't run on the main thread. By default, decryption happens on
+     * {@link Whorlwind#cryptoScheduler()}. A {@linkplain #cryptoScheduler(Scheduler) crypto
+     * scheduler} takes precedence over this one.
+     */
+    @NonNull public Builder decryptScheduler(@Nullable Scheduler scheduler) {
+      this.decryptScheduler = scheduler;
+      return this;
+    }
+
+    /**
+     * Stops the fingerprint reader once it has been idle for {@code timeout}, so that a read which
+     * is never finished doesn't keep the sensor powered and block other reads. The read then emits
+     * {@link ReadState#TIMED_OUT TIMED_OUT} and completes. Each rejected or unreadable fingerprint
+     * restarts the timeout. Pass 0 to never time out, which is the default.
+     */
+    @NonNull public Builder sensorTimeout(long timeout, @NonNull TimeUnit unit) {
+      if (timeout < 0) {
+        throw new IllegalArgumentException("timeout < 0: " + timeout);
+      }
+      this.sensorTimeoutMs = unit.toMillis(timeout);
+      return this;
+    }
+
+    /**
+     * Only activates the fingerprint reader while the latest value emitted by {@code active} is
+     * true, such as while the app or screen is in the foreground. A read which is scanning when
+     * it emits false stops scanning without completing, and starts again once it emits true. A
+     * read subscribed to while it is false emits {@link ReadState#NEEDS_AUTH NEEDS_AUTH} and waits.
+     * By default, the reader is always activated.
+     */
+    @NonNull public Builder sensorActive(@Nullable Observable<Boolean> active) {
+      this.sensorActive = active;
+      return this;
+    }
+
+    /**
+     * Delivers the fingerprint reader's callbacks on {@code handler}'s thread. They only emit
+     * {@link ReadResult}s and hand a successful read off for decryption, so the default of the
+     * main thread is usually fine. Reads which needed the reader also emit
+     * {@link ReadState#READY READY} on this thread, once the value has been decrypted elsewhere.
+     *
+     * @see #decryptScheduler(Scheduler)
+     */
+    @NonNull public Builder callbackHandler(@Nullable Handler handler) {
+      this.callbackHandler = handler;
+      return this;
+    }
+
+    /**
+     * Also {@linkplain MemoryBudget#install(Context) installs} the memory budget, unless the
+     * device is too old to store securely and nothing will be retained.
+     */
+    @NonNull public Whorlwind build() {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+        return new NullWhorlwind();
+      }
+
+      MemoryBudget.install(context);
+      return createRealWhorlwind(this);
+    }
+  }
 }
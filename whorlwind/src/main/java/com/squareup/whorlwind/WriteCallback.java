@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.whorlwind;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives the outcome of {@link Whorlwind#write(String, okio.ByteString, Protection,
+ * WriteCallback)}. Exactly one method is called.
+ */
+public interface WriteCallback {
+  /** The value was accepted by storage. */
+  void onComplete();
+
+  void onError(@NonNull Throwable error);
+}
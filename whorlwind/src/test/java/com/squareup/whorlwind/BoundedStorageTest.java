@@ -0,0 +1,86 @@
+package com.squareup.whorlwind;
+
+import okio.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE) //
+public final class BoundedStorageTest {
+  private final MemoryStorage delegate = new MemoryStorage();
+
+  @Test public void evictsLeastRecentlyUsedEntry() {
+    BoundedStorage storage = new BoundedStorage(delegate, 2, 100);
+    storage.put("a", ByteString.encodeUtf8("a"));
+    storage.put("b", ByteString.encodeUtf8("b"));
+    assertThat(storage.get("a")).isEqualTo(ByteString.encodeUtf8("a"));
+
+    storage.put("c", ByteString.encodeUtf8("c"));
+
+    assertThat(delegate.names()).containsExactly("a", "c");
+    assertThat(storage.evictionCount()).isEqualTo(1);
+    assertThat(storage.entryCount()).isEqualTo(2);
+  }
+
+  @Test public void maintenanceReadsAreNotUses() {
+    BoundedStorage storage = new BoundedStorage(delegate, 2, 100);
+    storage.put("a", ByteString.encodeUtf8("a"));
+    storage.put("b", ByteString.encodeUtf8("b"));
+    assertThat(Storages.peek(storage, "a")).isEqualTo(ByteString.encodeUtf8("a"));
+    assertThat(Storages.peek(new CachingStorage(storage, 100), "a")) //
+        .isEqualTo(ByteString.encodeUtf8("a"));
+
+    storage.put("c", ByteString.encodeUtf8("c"));
+
+    assertThat(delegate.names()).containsExactly("b", "c");
+  }
+
+  @Test public void evictsToStayWithinBytes() {
+    BoundedStorage storage = new BoundedStorage(delegate, 100, 10);
+    storage.put("a", ByteString.encodeUtf8("aaaa"));
+    storage.put("b", ByteString.encodeUtf8("bbbb"));
+    storage.put("a", ByteString.encodeUtf8("aa"));
+    assertThat(storage.byteCount()).isEqualTo(6);
+
+    storage.put("c", ByteString.encodeUtf8("cccccc"));
+
+    assertThat(delegate.names()).containsExactly("a", "c");
+    assertThat(storage.byteCount()).isEqualTo(8);
+  }
+
+  @Test public void oversizedValueIsKeptAlone() {
+    BoundedStorage storage = new BoundedStorage(delegate, 100, 4);
+    storage.put("a", ByteString.encodeUtf8("aa"));
+    storage.put("b", ByteString.encodeUtf8("bbbbbbbb"));
+
+    assertThat(delegate.names()).containsExactly("b");
+  }
+
+  @Test public void existingValuesAreCounted() {
+    delegate.put("a", ByteString.encodeUtf8("a"));
+    delegate.put("b", ByteString.encodeUtf8("b"));
+    BoundedStorage storage = new BoundedStorage(delegate, 2, 100);
+
+    storage.put("c", ByteString.encodeUtf8("c"));
+
+    assertThat(delegate.names()).containsExactly("b", "c");
+  }
+
+  @Test public void removeAndClearAreCounted() {
+    BoundedStorage storage = new BoundedStorage(delegate, 2, 100);
+    storage.put("a", ByteString.encodeUtf8("a"));
+    storage.put("b", ByteString.encodeUtf8("b"));
+    storage.remove("a");
+    storage.put("c", ByteString.encodeUtf8("c"));
+    assertThat(delegate.names()).containsExactly("b", "c");
+
+    storage.clear();
+    assertThat(storage.entryCount()).isEqualTo(0);
+    assertThat(storage.byteCount()).isEqualTo(0);
+    assertThat(storage.evictionCount()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,62 @@
+package com.squareup.whorlwind;
+
+import okio.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE) //
+public final class CachingStorageTest {
+  private final MemoryStorage delegate = new MemoryStorage();
+  private final CachingStorage storage = new CachingStorage(delegate, 10);
+
+  @Test public void readsAreCached() {
+    delegate.put("a", ByteString.encodeUtf8("aaa"));
+
+    assertThat(storage.get("a")).isEqualTo(ByteString.encodeUtf8("aaa"));
+    assertThat(storage.get("a")).isEqualTo(ByteString.encodeUtf8("aaa"));
+    assertThat(delegate.gets).isEqualTo(1);
+    assertThat(storage.hitCount()).isEqualTo(1);
+    assertThat(storage.missCount()).isEqualTo(1);
+  }
+
+  @Test public void writesGoThrough() {
+    storage.put("a", ByteString.encodeUtf8("aaa"));
+    assertThat(delegate.get("a")).isEqualTo(ByteString.encodeUtf8("aaa"));
+    assertThat(storage.get("a")).isEqualTo(ByteString.encodeUtf8("aaa"));
+
+    storage.put("a", ByteString.encodeUtf8("bbb"));
+    assertThat(storage.get("a")).isEqualTo(ByteString.encodeUtf8("bbb"));
+
+    storage.remove("a");
+    assertThat(delegate.get("a")).isNull();
+    assertThat(storage.get("a")).isNull();
+
+    storage.put("a", ByteString.encodeUtf8("aaa"));
+    storage.clear();
+    assertThat(delegate.names()).isEmpty();
+    assertThat(storage.get("a")).isNull();
+    assertThat(storage.size()).isEqualTo(0);
+  }
+
+  @Test public void leastRecentlyUsedValuesAreEvicted() {
+    storage.put("a", ByteString.encodeUtf8("aaaa"));
+    storage.put("b", ByteString.encodeUtf8("bbbb"));
+    assertThat(storage.get("a")).isNotNull();
+    storage.put("c", ByteString.encodeUtf8("cccc"));
+
+    assertThat(storage.size()).isEqualTo(8);
+    assertThat(storage.evictionCount()).isEqualTo(1);
+
+    delegate.gets = 0;
+    assertThat(storage.get("a")).isEqualTo(ByteString.encodeUtf8("aaaa"));
+    assertThat(storage.get("c")).isEqualTo(ByteString.encodeUtf8("cccc"));
+    assertThat(delegate.gets).isEqualTo(0);
+    assertThat(storage.get("b")).isEqualTo(ByteString.encodeUtf8("bbbb"));
+    assertThat(delegate.gets).isEqualTo(1);
+  }
+}
@@ -0,0 +1,195 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.NonNull;
+import com.squareup.whorlwind.ReadResult.ReadState;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static android.Manifest.permission.USE_FINGERPRINT;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.verify;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M) //
+@SuppressLint("NewApi") //
+public final class CallbackApiTest {
+  private final FakeFingerprintSensor sensor = new FakeFingerprintSensor();
+  private final MemoryStorage storage = new MemoryStorage();
+  private final KeyStoreRegistry registry = new FakeKeyStore().registry();
+  private RealWhorlwind whorlwind;
+
+  @Before public void setUp() {
+    shadowOf(RuntimeEnvironment.application).grantPermissions(USE_FINGERPRINT);
+    Whorlwind.Builder builder =
+        new Whorlwind.Builder(RuntimeEnvironment.application, storage, "test");
+    // Report READY from touch().
+    builder.decryptScheduler = Schedulers.trampoline();
+    builder.resultScheduler = Schedulers.trampoline();
+    whorlwind = new RealWhorlwind(builder, sensor.fingerprintManager, registry);
+  }
+
+  @Test public void writeAndReadWithCallbacks() throws Exception {
+    RecordingWriteCallback write = new RecordingWriteCallback();
+    whorlwind.write("a", ByteString.encodeUtf8("value"), Protection.AUTHENTICATED, write);
+    assertThat(write.completed).isTrue();
+    assertThat(write.error).isNull();
+
+    RecordingReadCallback read = new RecordingReadCallback();
+    whorlwind.read("a", read);
+    assertThat(read.states()).containsExactly(ReadState.NEEDS_AUTH);
+
+    sensor.touch();
+    assertThat(read.states()).containsExactly(ReadState.NEEDS_AUTH, ReadState.READY).inOrder();
+    assertThat(read.results.get(1).value).isEqualTo(ByteString.encodeUtf8("value"));
+  }
+
+  @Test public void missingValueIsReportedBeforeReturning() {
+    RecordingReadCallback read = new RecordingReadCallback();
+    whorlwind.read("missing", read);
+
+    assertThat(read.states()).containsExactly(ReadState.READY);
+    assertThat(read.results.get(0).value).isNull();
+  }
+
+  @Test public void writeNullRemoves() {
+    whorlwind.write("a", ByteString.encodeUtf8("value"), Protection.AT_REST,
+        new RecordingWriteCallback());
+    RecordingWriteCallback remove = new RecordingWriteCallback();
+    whorlwind.write("a", null, Protection.AT_REST, remove);
+
+    assertThat(remove.completed).isTrue();
+    assertThat(storage.names()).isEmpty();
+  }
+
+  @Test public void failingCompletionIsNotReportedAsError() {
+    final AtomicInteger errors = new AtomicInteger();
+    try {
+      whorlwind.write("a", null, Protection.AT_REST, new WriteCallback() {
+        @Override public void onComplete() {
+          throw new IllegalStateException("Callback is broken.");
+        }
+
+        @Override public void onError(@NonNull Throwable error) {
+          errors.incrementAndGet();
+        }
+      });
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    assertThat(errors.get()).isEqualTo(0);
+  }
+
+  @Test public void cancelStopsReaderWithoutFurtherCallbacks() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("value"), Protection.AUTHENTICATED,
+        new RecordingWriteCallback());
+
+    RecordingReadCallback read = new RecordingReadCallback();
+    Cancelable cancelable = whorlwind.read("a", read);
+    cancelable.cancel();
+    sensor.awaitIdle();
+    sensor.touch();
+
+    assertThat(sensor.cancellations.get()).isEqualTo(1);
+    assertThat(read.states()).containsExactly(ReadState.NEEDS_AUTH);
+    assertThat(read.error).isNull();
+  }
+
+  @Test public void decryptsOffCallbackThreadAndReportsOnIt() throws Exception {
+    Handler handler = new Handler(Looper.getMainLooper());
+    final AtomicInteger decrypts = new AtomicInteger();
+    Scheduler decryptScheduler = Schedulers.from(new Executor() {
+      @Override public void execute(@NonNull Runnable command) {
+        decrypts.incrementAndGet();
+        new Thread(command, "decrypt").start();
+      }
+    });
+    RealWhorlwind whorlwind = new RealWhorlwind(
+        new Whorlwind.Builder(RuntimeEnvironment.application, storage, "test") //
+            .callbackHandler(handler)
+            .decryptScheduler(decryptScheduler), sensor.fingerprintManager, registry);
+    whorlwind.write("a", ByteString.encodeUtf8("value"), Protection.AUTHENTICATED,
+        new RecordingWriteCallback());
+
+    final AtomicReference<String> readyThread = new AtomicReference<>();
+    final CountDownLatch ready = new CountDownLatch(1);
+    whorlwind.read("a", new RecordingReadCallback() {
+      @Override public synchronized void onResult(@NonNull ReadResult result) {
+        if (result.readState == ReadState.READY) {
+          readyThread.set(Thread.currentThread().getName());
+          ready.countDown();
+        }
+      }
+    });
+    verify(sensor.fingerprintManager).authenticate(any(FingerprintManager.CryptoObject.class),
+        any(CancellationSignal.class), anyInt(),
+        any(FingerprintManager.AuthenticationCallback.class), same(handler));
+
+    sensor.touch();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!ready.await(10, TimeUnit.MILLISECONDS)) {
+      assertThat(System.nanoTime()).isLessThan(deadline);
+      shadowOf(Looper.getMainLooper()).idle(); // Run the posted result.
+    }
+    assertThat(decrypts.get()).isEqualTo(1);
+    assertThat(readyThread.get()).isEqualTo(Looper.getMainLooper().getThread().getName());
+  }
+
+  static final class RecordingWriteCallback implements WriteCallback {
+    boolean completed;
+    Throwable error;
+
+    @Override public void onComplete() {
+      completed = true;
+    }
+
+    @Override public void onError(@NonNull Throwable error) {
+      this.error = error;
+    }
+  }
+
+  static class RecordingReadCallback implements ReadCallback {
+    final List<ReadResult> results = new ArrayList<>();
+    Throwable error;
+
+    @Override public synchronized void onResult(@NonNull ReadResult result) {
+      results.add(result);
+    }
+
+    @Override public synchronized void onError(@NonNull Throwable error) {
+      this.error = error;
+    }
+
+    synchronized List<ReadState> states() {
+      List<ReadState> states = new ArrayList<>();
+      for (ReadResult result : results) {
+        states.add(result.readState);
+      }
+      return states;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import javax.crypto.Cipher;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.whorlwind.TestWhorlwinds.builder;
+import static com.squareup.whorlwind.TestWhorlwinds.readValue;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M) //
+@SuppressLint("NewApi") //
+public final class CiphertextHeaderTest {
+  @Test public void roundTrip() {
+    byte[] payload = new byte[256];
+    new Random(0).nextBytes(payload);
+
+    ByteString value = CiphertextHeader.encode(CiphertextHeader.ALGORITHM_RSA_ECB_PKCS1,
+        CiphertextHeader.FLAG_AT_REST, 0xcafebabe, 0x0123456789abcdefL, 1000L, payload);
+
+    assertThat(CiphertextHeader.hasHeader(value)).isTrue();
+    assertThat(CiphertextHeader.version(value)).isEqualTo(CiphertextHeader.VERSION);
+    assertThat(CiphertextHeader.algorithm(value))
+        .isEqualTo(CiphertextHeader.ALGORITHM_RSA_ECB_PKCS1);
+    assertThat(CiphertextHeader.flags(value))
+        .isEqualTo(CiphertextHeader.FLAG_AT_REST
+            | CiphertextHeader.FLAG_EXPIRES
+            | CiphertextHeader.FLAG_CHECKSUM);
+    assertThat(CiphertextHeader.isAtRest(value)).isTrue();
+    assertThat(CiphertextHeader.keyId(value)).isEqualTo(0xcafebabe);
+    assertThat(CiphertextHeader.entryVersion(value)).isEqualTo(0x0123456789abcdefL);
+    assertThat(CiphertextHeader.expiresAt(value)).isEqualTo(1000L);
+    assertThat(CiphertextHeader.isExpired(value, 999L)).isFalse();
+    assertThat(CiphertextHeader.isExpired(value, 1000L)).isTrue();
+    assertThat(value.substring(CiphertextHeader.payloadOffset(value),
+        CiphertextHeader.payloadOffset(value) + CiphertextHeader.payloadLength(value)))
+        .isEqualTo(ByteString.of(payload));
+  }
+
+  @Test public void intact() throws Exception {
+    byte[] payload = new byte[256];
+    new Random(0).nextBytes(payload);
+    ByteString value = CiphertextHeader.encode(CiphertextHeader.ALGORITHM_RSA_ECB_PKCS1, 0, 1, 2,
+        0, payload);
+    assertThat(CiphertextHeader.isIntact(value, 256)).isTrue();
+    assertThat(CiphertextHeader.isIntact(value, 128)).isFalse();
+
+    byte[] corrupt = value.toByteArray();
+    corrupt[CiphertextHeader.payloadOffset(value)] ^= 1;
+    assertThat(CiphertextHeader.isIntact(ByteString.of(corrupt), 256)).isFalse();
+
+    // Straddles two segments, so that the value is written out in two parts.
+    Buffer buffer = new Buffer().write(new byte[8100]).write(value);
+    buffer.skip(8100);
+    ByteString segmented = buffer.snapshot();
+    assertThat(segmented).isEqualTo(value);
+    assertThat(CiphertextHeader.isIntact(segmented, 256)).isTrue();
+    Buffer corruptBuffer = new Buffer().write(new byte[8100]).write(corrupt);
+    corruptBuffer.skip(8100);
+    assertThat(CiphertextHeader.isIntact(corruptBuffer.snapshot(), 256)).isFalse();
+
+    assertThat(CiphertextHeader.isIntact(ByteString.of(payload), 256)).isTrue();
+  }
+
+  @Test public void paddedToAvoidLegacyLength() {
+    // The header and its checksum are 21 bytes.
+    byte[] payload = new byte[3];
+
+    ByteString value = CiphertextHeader.encode(CiphertextHeader.ALGORITHM_RSA_ECB_PKCS1, 0, 1, 2, 0,
+        payload);
+
+    assertThat(value.size()).isEqualTo(CiphertextHeader.SIZE + 4 + 3 + 1);
+    assertThat(CiphertextHeader.flags(value))
+        .isEqualTo(CiphertextHeader.FLAG_PADDED | CiphertextHeader.FLAG_CHECKSUM);
+    assertThat(CiphertextHeader.payloadLength(value)).isEqualTo(3);
+    assertThat(CiphertextHeader.expiresAt(value)).isEqualTo(0);
+  }
+
+  @Test public void versionOneHeaderHasNoEntryVersion() {
+    byte[] payload = new byte[256];
+    new Random(0).nextBytes(payload);
+    ByteString value = new Buffer() //
+        .writeUtf8("Wh")
+        .writeByte(1)
+        .writeByte(CiphertextHeader.ALGORITHM_RSA_ECB_PKCS1)
+        .writeByte(0)
+        .writeInt(0xcafebabe)
+        .write(payload)
+        .readByteString();
+
+    assertThat(CiphertextHeader.hasHeader(value)).isTrue();
+    assertThat(CiphertextHeader.keyId(value)).isEqualTo(0xcafebabe);
+    assertThat(CiphertextHeader.entryVersion(value))
+        .isEqualTo(CiphertextHeader.LEGACY_ENTRY_VERSION);
+    assertThat(CiphertextHeader.payloadOffset(value)).isEqualTo(9);
+    assertThat(CiphertextHeader.payloadLength(value)).isEqualTo(256);
+  }
+
+  @Test public void legacyValueStartingWithMagic() {
+    byte[] block = new byte[256];
+    new Random(0).nextBytes(block);
+    block[0] = 'W';
+    block[1] = 'h';
+    ByteString value = ByteString.of(block);
+
+    assertThat(CiphertextHeader.hasHeader(value)).isFalse();
+    assertThat(CiphertextHeader.algorithm(value)).isEqualTo(CiphertextHeader.ALGORITHM_LEGACY);
+    assertThat(CiphertextHeader.payloadOffset(value)).isEqualTo(0);
+    assertThat(CiphertextHeader.payloadLength(value)).isEqualTo(256);
+  }
+
+  @Test public void legacyValuesStayReadable() throws Exception {
+    FakeKeyStore keyStore = new FakeKeyStore();
+    MemoryStorage storage = new MemoryStorage();
+    KeyStoreRegistry registry = keyStore.registry();
+    FakeFingerprintSensor sensor = new FakeFingerprintSensor(0);
+
+    // Generate the key and store a value the way it was before headers.
+    registry.keyGenerator.initialize(new KeyGenParameterSpec.Builder("test",
+        KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT).build());
+    registry.keyGenerator.generateKeyPair();
+    Cipher cipher = RealWhorlwind.createCipher();
+    cipher.init(Cipher.ENCRYPT_MODE, keyStore.keyStore.getCertificate("test").getPublicKey());
+    storage.put("legacy", ByteString.of(cipher.doFinal("old".getBytes("UTF-8"))));
+
+    RealWhorlwind whorlwind =
+        new RealWhorlwind(builder(storage), sensor.fingerprintManager, registry);
+    whorlwind.write("new", ByteString.encodeUtf8("new")).blockingAwait();
+    assertThat(keyStore.generatedKeys.get()).isEqualTo(1);
+
+    assertThat(CiphertextHeader.hasHeader(storage.get("new"))).isTrue();
+    assertThat(readValue(whorlwind.read("new"))).isEqualTo(ByteString.encodeUtf8("new"));
+    assertThat(readValue(whorlwind.read("legacy"))).isEqualTo(ByteString.encodeUtf8("old"));
+  }
+
+  @Test public void newerFormatFailsBeforeAuthentication() throws Exception {
+    FakeFingerprintSensor sensor = new FakeFingerprintSensor(0);
+    MemoryStorage storage = new MemoryStorage();
+    RealWhorlwind whorlwind =
+        new RealWhorlwind(builder(storage), sensor.fingerprintManager,
+            new FakeKeyStore().registry());
+    whorlwind.write("a", ByteString.encodeUtf8("a")).blockingAwait();
+
+    ByteString current = storage.get("a");
+    storage.put("a", new Buffer().write(current.substring(0, 2))
+        .writeByte(CiphertextHeader.VERSION + 1)
+        .write(current.substring(3))
+        .readByteString());
+
+    whorlwind.read("a").test().assertError(GeneralSecurityException.class);
+    assertThat(sensor.activations.get()).isEqualTo(0);
+  }
+}
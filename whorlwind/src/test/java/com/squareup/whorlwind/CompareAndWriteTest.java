@@ -0,0 +1,142 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import io.reactivex.observers.TestObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.whorlwind.TestWhorlwinds.create;
+import static com.squareup.whorlwind.TestWhorlwinds.readValue;
+import static com.squareup.whorlwind.TestWhorlwinds.readyResult;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M) //
+@SuppressLint("NewApi") //
+public final class CompareAndWriteTest {
+  private final FakeKeyStore keyStore = new FakeKeyStore();
+  private final FakeFingerprintSensor sensor = new FakeFingerprintSensor(0);
+  private final MemoryStorage storage = new MemoryStorage();
+  private RealWhorlwind whorlwind;
+
+  @Before public void setUp() {
+    whorlwind = create(storage, sensor, keyStore);
+  }
+
+  @Test public void noVersionOnlyWritesIfAbsent() throws Exception {
+    whorlwind.compareAndWrite("a", Whorlwind.NO_VERSION, ByteString.encodeUtf8("first"))
+        .blockingAwait();
+    ReadResult first = readyResult(whorlwind.read("a"));
+
+    TestObserver<Void> observer =
+        whorlwind.compareAndWrite("a", Whorlwind.NO_VERSION, ByteString.encodeUtf8("second"))
+            .test();
+    observer.assertError(VersionConflictException.class);
+    VersionConflictException conflict = (VersionConflictException) observer.errors().get(0);
+    assertThat(conflict.actualVersion).isEqualTo(first.version);
+    assertThat(readValue(whorlwind.read("a"))).isEqualTo(ByteString.encodeUtf8("first"));
+  }
+
+  @Test public void writeWithReadVersion() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("first")).blockingAwait();
+    ReadResult first = readyResult(whorlwind.read("a"));
+    assertThat(first.version).isNotEqualTo(Whorlwind.NO_VERSION);
+
+    whorlwind.compareAndWrite("a", first.version, ByteString.encodeUtf8("second"))
+        .blockingAwait();
+    ReadResult second = readyResult(whorlwind.read("a"));
+    assertThat(second.value).isEqualTo(ByteString.encodeUtf8("second"));
+    assertThat(second.version).isNotEqualTo(first.version);
+
+    // Anyone else still holding the first version lost the race.
+    whorlwind.compareAndWrite("a", first.version, ByteString.encodeUtf8("third"))
+        .test()
+        .assertError(VersionConflictException.class);
+    assertThat(readValue(whorlwind.read("a"))).isEqualTo(ByteString.encodeUtf8("second"));
+  }
+
+  @Test public void unconditionalWriteChangesVersion() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("first")).blockingAwait();
+    ReadResult first = readyResult(whorlwind.read("a"));
+    whorlwind.write("a", ByteString.encodeUtf8("first")).blockingAwait();
+
+    whorlwind.compareAndWrite("a", first.version, ByteString.encodeUtf8("second"))
+        .test()
+        .assertError(VersionConflictException.class);
+  }
+
+  @Test public void removeWithVersion() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("first")).blockingAwait();
+    ReadResult first = readyResult(whorlwind.read("a"));
+
+    whorlwind.compareAndWrite("a", first.version, null).blockingAwait();
+    assertThat(storage.names()).isEmpty();
+    assertThat(readyResult(whorlwind.read("a")).version).isEqualTo(Whorlwind.NO_VERSION);
+  }
+
+  @Test public void valueOfInvalidatedKeyHasNoVersion() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("old")).blockingAwait();
+    keyStore.invalidate("test");
+
+    whorlwind.compareAndWrite("a", Whorlwind.NO_VERSION, ByteString.encodeUtf8("new"))
+        .blockingAwait();
+    assertThat(readValue(whorlwind.read("a"))).isEqualTo(ByteString.encodeUtf8("new"));
+  }
+
+  @Test public void concurrentIncrementsAreNotLost() throws Exception {
+    whorlwind.write("count", ByteString.encodeUtf8("0"), Protection.AT_REST).blockingAwait();
+
+    final int threads = 4;
+    final int increments = 25;
+    final List<Throwable> errors = new ArrayList<>();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread(new Runnable() {
+        @Override public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < increments; j++) {
+              while (true) {
+                ReadResult current = whorlwind.read("count").blockingLast();
+                int count = Integer.parseInt(current.value.utf8());
+                Throwable error = whorlwind.compareAndWrite("count", current.version,
+                    ByteString.encodeUtf8(String.valueOf(count + 1)), Protection.AT_REST)
+                    .blockingGet();
+                if (error == null) {
+                  break;
+                }
+                if (!(error instanceof VersionConflictException)) {
+                  throw error;
+                }
+              }
+            }
+          } catch (Throwable t) {
+            synchronized (errors) {
+              errors.add(t);
+            }
+          }
+        }
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    assertThat(errors).isEmpty();
+    assertThat(readValue(whorlwind.read("count"))).isEqualTo(ByteString.encodeUtf8("100"));
+    assertThat(sensor.activations.get()).isEqualTo(0);
+  }
+}
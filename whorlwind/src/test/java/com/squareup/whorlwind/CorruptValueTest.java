@@ -0,0 +1,68 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import java.util.Random;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.whorlwind.TestWhorlwinds.create;
+import static com.squareup.whorlwind.TestWhorlwinds.lastResult;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M) //
+@SuppressLint("NewApi") //
+public final class CorruptValueTest {
+  private final FakeKeyStore keyStore = new FakeKeyStore();
+  private final FakeFingerprintSensor sensor = new FakeFingerprintSensor(0);
+  private final MemoryStorage storage = new MemoryStorage();
+  private RealWhorlwind whorlwind;
+
+  @Before public void setUp() {
+    whorlwind = create(storage, sensor, keyStore);
+  }
+
+  @Test public void flippedByteIsCorruptWithoutSensor() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("a")).blockingAwait();
+    whorlwind.write("b", ByteString.encodeUtf8("b")).blockingAwait();
+    byte[] bytes = storage.get("a").toByteArray();
+    bytes[bytes.length - 10] ^= 1;
+    storage.put("a", ByteString.of(bytes));
+
+    assertThat(lastResult(whorlwind.read("a")).readState).isEqualTo(ReadResult.ReadState.CORRUPT);
+    assertThat(sensor.activations.get()).isEqualTo(0);
+    assertThat(storage.names()).containsExactly("b");
+    assertThat(lastResult(whorlwind.read("b")).value).isEqualTo(ByteString.encodeUtf8("b"));
+  }
+
+  @Test public void truncatedValueIsCorruptWithoutSensor() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("a")).blockingAwait();
+    ByteString value = storage.get("a");
+    storage.put("a", value.substring(0, value.size() - 3));
+
+    assertThat(lastResult(whorlwind.read("a")).readState).isEqualTo(ReadResult.ReadState.CORRUPT);
+    assertThat(sensor.activations.get()).isEqualTo(0);
+    assertThat(storage.names()).isEmpty();
+  }
+
+  @Test public void undecryptableBlockOnlyDropsThatValue() throws Exception {
+    whorlwind.write("b", ByteString.encodeUtf8("b")).blockingAwait();
+    // Intact as far as can be told without the key, but not encrypted with it.
+    byte[] block = new byte[128];
+    new Random(0).nextBytes(block);
+    block[0] = 0;
+    storage.put("a", CiphertextHeader.encode(CiphertextHeader.ALGORITHM_RSA_ECB_PKCS1, 0,
+        CiphertextHeader.keyId(whorlwind.getPublicKey("test")), 2, 0, block));
+
+    assertThat(lastResult(whorlwind.read("a")).readState).isEqualTo(ReadResult.ReadState.CORRUPT);
+    assertThat(sensor.activations.get()).isEqualTo(1);
+    assertThat(storage.names()).containsExactly("b");
+    assertThat(keyStore.generatedKeys.get()).isEqualTo(1);
+    assertThat(lastResult(whorlwind.read("b")).value).isEqualTo(ByteString.encodeUtf8("b"));
+  }
+}
@@ -0,0 +1,44 @@
+package com.squareup.whorlwind;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public final class CryptoSchedulerTest {
+  @Test public void burstIsQueuedOnBoundedThreads() throws InterruptedException {
+    ExecutorService executor = CryptoScheduler.newExecutor(2);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(50);
+    for (int i = 0; i < 50; i++) {
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          int now = running.incrementAndGet();
+          while (true) {
+            int max = maxRunning.get();
+            if (now <= max || maxRunning.compareAndSet(max, now)) break;
+          }
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          running.decrementAndGet();
+          done.countDown();
+        }
+      });
+    }
+
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(maxRunning.get()).isAtMost(2);
+    executor.shutdown();
+  }
+
+  @Test public void sharedSchedulerIsReused() {
+    assertThat(Whorlwind.cryptoScheduler()).isSameAs(Whorlwind.cryptoScheduler());
+  }
+}
@@ -0,0 +1,122 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import io.reactivex.schedulers.TestScheduler;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.whorlwind.TestWhorlwinds.builder;
+import static com.squareup.whorlwind.TestWhorlwinds.readValue;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M) //
+@SuppressLint("NewApi") //
+public final class ExpiryTest {
+  private final FakeKeyStore keyStore = new FakeKeyStore();
+  private final KeyStoreRegistry registry = keyStore.registry();
+  private final FakeFingerprintSensor sensor = new FakeFingerprintSensor(0);
+  private final MemoryStorage storage = new MemoryStorage();
+  private final TestScheduler writerClock = new TestScheduler();
+  private final TestScheduler readerClock = new TestScheduler();
+  private RealWhorlwind writer;
+  private RealWhorlwind reader;
+
+  @Before public void setUp() {
+    writer = create(writerClock);
+    reader = create(readerClock);
+  }
+
+  @Test public void readsBeforeExpiry() throws Exception {
+    writer.write("token", ByteString.encodeUtf8("session"), Protection.AUTHENTICATED, 1,
+        TimeUnit.MINUTES).blockingAwait();
+    readerClock.advanceTimeBy(59, TimeUnit.SECONDS);
+
+    assertThat(readValue(reader.read("token"))).isEqualTo(ByteString.encodeUtf8("session"));
+  }
+
+  @Test public void expiredValueReadsAbsentWithoutSensor() throws Exception {
+    writer.write("token", ByteString.encodeUtf8("session"), Protection.AUTHENTICATED, 1,
+        TimeUnit.MINUTES).blockingAwait();
+    readerClock.advanceTimeBy(1, TimeUnit.MINUTES);
+
+    assertThat(readValue(reader.read("token"))).isNull();
+    assertThat(sensor.activations.get()).isEqualTo(0);
+    assertThat(storage.names()).containsExactly("token");
+
+    // The read scheduled a sweep.
+    readerClock.triggerActions();
+    assertThat(storage.names()).isEmpty();
+  }
+
+  @Test public void subMillisecondTtlExpires() throws Exception {
+    writer.write("token", ByteString.encodeUtf8("session"), Protection.AUTHENTICATED, 1,
+        TimeUnit.NANOSECONDS).blockingAwait();
+    readerClock.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+
+    assertThat(readValue(reader.read("token"))).isNull();
+  }
+
+  @Test public void longestTtlNeverExpires() throws Exception {
+    writerClock.advanceTimeBy(1, TimeUnit.DAYS);
+    writer.write("millis", ByteString.encodeUtf8("a"), Protection.AT_REST, Long.MAX_VALUE,
+        TimeUnit.MILLISECONDS).blockingAwait();
+    writer.write("days", ByteString.encodeUtf8("b"), Protection.AT_REST, Long.MAX_VALUE,
+        TimeUnit.DAYS).blockingAwait();
+    writerClock.triggerActions();
+    readerClock.advanceTimeBy(365, TimeUnit.DAYS);
+
+    assertThat(readValue(reader.read("millis"))).isEqualTo(ByteString.encodeUtf8("a"));
+    assertThat(readValue(reader.read("days"))).isEqualTo(ByteString.encodeUtf8("b"));
+    assertThat(storage.names()).containsExactly("millis", "days");
+  }
+
+  @Test public void sweptOnceExpired() {
+    writer.write("token", ByteString.encodeUtf8("session"), Protection.AT_REST, 1,
+        TimeUnit.MINUTES).blockingAwait();
+    writer.write("credential", ByteString.encodeUtf8("forever")).blockingAwait();
+    writerClock.triggerActions();
+    assertThat(storage.names()).containsExactly("token", "credential");
+
+    writerClock.advanceTimeBy(1, TimeUnit.MINUTES);
+    assertThat(storage.names()).containsExactly("credential");
+  }
+
+  @Test public void eachExpiryIsSweptByOnePendingSweep() {
+    writer.write("short", ByteString.encodeUtf8("a"), Protection.AT_REST, 1, TimeUnit.MINUTES)
+        .blockingAwait();
+    writer.write("long", ByteString.encodeUtf8("b"), Protection.AT_REST, 2, TimeUnit.MINUTES)
+        .blockingAwait();
+    writer.write("short", ByteString.encodeUtf8("c"), Protection.AT_REST, 1, TimeUnit.MINUTES)
+        .blockingAwait();
+
+    // The first sweep finds the other value and sweeps again once it has expired.
+    writerClock.advanceTimeBy(1, TimeUnit.MINUTES);
+    assertThat(storage.names()).containsExactly("long");
+    writerClock.advanceTimeBy(1, TimeUnit.MINUTES);
+    assertThat(storage.names()).isEmpty();
+  }
+
+  @Test public void expiredValueHasNoVersion() throws Exception {
+    writer.write("token", ByteString.encodeUtf8("old"), Protection.AT_REST, 1, TimeUnit.MINUTES)
+        .blockingAwait();
+    readerClock.advanceTimeBy(1, TimeUnit.MINUTES);
+
+    reader.compareAndWrite("token", Whorlwind.NO_VERSION, ByteString.encodeUtf8("new"),
+        Protection.AT_REST).blockingAwait();
+    assertThat(readValue(reader.read("token"))).isEqualTo(ByteString.encodeUtf8("new"));
+  }
+
+  /** Both instances share {@link #registry}, as instances in one process would. */
+  private RealWhorlwind create(TestScheduler clock) {
+    Whorlwind.Builder builder = builder(storage);
+    builder.maintenanceScheduler = clock;
+    return new RealWhorlwind(builder, sensor.fingerprintManager, registry);
+  }
+}
@@ -0,0 +1,147 @@
+package com.squareup.whorlwind;
+
+import android.hardware.fingerprint.FingerprintManager;
+import android.hardware.fingerprint.FingerprintManager.AuthenticationCallback;
+import android.hardware.fingerprint.FingerprintManager.AuthenticationResult;
+import android.hardware.fingerprint.FingerprintManager.CryptoObject;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import androidx.annotation.Nullable;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static android.hardware.fingerprint.FingerprintManager.FINGERPRINT_ERROR_CANCELED;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A {@link FingerprintManager} whose sensor is driven by a single background thread. Each
+ * activation sees a few rejected reads and a short delay, chosen by a seeded random so runs are
+ * repeatable, and then a successful one. Alternatively, the test decides when a finger lands by
+ * calling {@link #touch()}. Cancelling an activation reports
+ * {@code FINGERPRINT_ERROR_CANCELED} like the real framework does.
+ */
+final class FakeFingerprintSensor {
+  final FingerprintManager fingerprintManager = mock(FingerprintManager.class);
+  final AtomicInteger activations = new AtomicInteger();
+  final AtomicInteger cancellations = new AtomicInteger();
+  private final ExecutorService sensorThread =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "fake-sensor");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  /** Null if fingers only land when {@link #touch()} is called. */
+  @Nullable private final Random random;
+  @Nullable private volatile Runnable pendingTouch;
+
+  /** A sensor where a finger lands on every activation. */
+  FakeFingerprintSensor(long seed) {
+    this(new Random(seed));
+  }
+
+  /** A sensor where a finger only lands when {@link #touch()} is called. */
+  FakeFingerprintSensor() {
+    this((Random) null);
+  }
+
+  private FakeFingerprintSensor(@Nullable Random random) {
+    this.random = random;
+
+    when(fingerprintManager.isHardwareDetected()).thenReturn(true);
+    when(fingerprintManager.hasEnrolledFingerprints()).thenReturn(true);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        activate(invocation.<CryptoObject>getArgument(0),
+            invocation.<CancellationSignal>getArgument(1),
+            invocation.<AuthenticationCallback>getArgument(3));
+        return null;
+      }
+    }).when(fingerprintManager)
+        .authenticate(any(CryptoObject.class), any(CancellationSignal.class), anyInt(),
+            any(AuthenticationCallback.class), nullable(Handler.class));
+  }
+
+  /** Waits for callbacks already posted by the sensor, such as cancellations, to be delivered. */
+  void awaitIdle() throws Exception {
+    sensorThread.submit(new Runnable() {
+      @Override public void run() {
+      }
+    }).get(10, TimeUnit.SECONDS);
+  }
+
+  /** Successfully authenticates the latest activation if it is still active. */
+  void touch() throws Exception {
+    Runnable touch = pendingTouch;
+    if (touch != null) {
+      sensorThread.submit(touch).get(10, TimeUnit.SECONDS);
+    }
+  }
+
+  private void activate(final CryptoObject cryptoObject,
+      final CancellationSignal cancellationSignal, final AuthenticationCallback callback) {
+    activations.incrementAndGet();
+    final AtomicBoolean finished = new AtomicBoolean();
+
+    cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+      @Override public void onCancel() {
+        // Whorlwind also cancels once a read has completed, which is a no-op.
+        if (!finished.compareAndSet(false, true)) {
+          return;
+        }
+        cancellations.incrementAndGet();
+        sensorThread.execute(new Runnable() {
+          @Override public void run() {
+            callback.onAuthenticationError(FINGERPRINT_ERROR_CANCELED, "Canceled");
+          }
+        });
+      }
+    });
+
+    if (random == null) {
+      pendingTouch = new Runnable() {
+        @Override public void run() {
+          if (finished.compareAndSet(false, true)) {
+            AuthenticationResult result = mock(AuthenticationResult.class);
+            when(result.getCryptoObject()).thenReturn(cryptoObject);
+            callback.onAuthenticationSucceeded(result);
+          }
+        }
+      };
+      return;
+    }
+
+    sensorThread.execute(new Runnable() {
+      @Override public void run() {
+        int rejections = random.nextInt(3);
+        for (int i = 0; i < rejections && !finished.get(); i++) {
+          callback.onAuthenticationFailed();
+        }
+        // Leave some time for the reader to give up before the finger lands.
+        try {
+          Thread.sleep(random.nextInt(3));
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        if (finished.compareAndSet(false, true)) {
+          AuthenticationResult result = mock(AuthenticationResult.class);
+          when(result.getCryptoObject()).thenReturn(cryptoObject);
+          callback.onAuthenticationSucceeded(result);
+        }
+      }
+    });
+  }
+}
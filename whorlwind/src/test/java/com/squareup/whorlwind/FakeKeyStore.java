@@ -0,0 +1,164 @@
+package com.squareup.whorlwind;
+
+import android.security.keystore.KeyGenParameterSpec;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreSpi;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * An in-memory stand-in for the Android key store backed by the JVM's RSA implementation, so that
+ * {@link RealWhorlwind} can be exercised with real encryption off-device.
+ */
+final class FakeKeyStore {
+  private final Map<String, KeyPair> keyPairs = new ConcurrentHashMap<>();
+  private final Map<String, Certificate> certificates = new ConcurrentHashMap<>();
+  final AtomicInteger generatedKeys = new AtomicInteger();
+  final AtomicInteger keyLookups = new AtomicInteger();
+
+  final KeyStore keyStore;
+  final KeyPairGenerator keyGenerator;
+
+  FakeKeyStore() {
+    try {
+      keyStore = new KeyStore(new Spi(), null, "Fake") {
+      };
+      keyStore.load(null);
+      keyGenerator = new Generator();
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  KeyStoreRegistry registry() {
+    try {
+      return new KeyStoreRegistry(keyStore, keyGenerator, KeyFactory.getInstance("RSA"));
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Simulates the key being permanently invalidated, e.g. by a new fingerprint enrollment. */
+  void invalidate(String alias) {
+    keyPairs.remove(alias);
+    certificates.remove(alias);
+  }
+
+  private final class Generator extends KeyPairGenerator {
+    private final KeyPairGenerator rsa;
+    private String alias;
+    private BigInteger serialNumber;
+
+    Generator() throws GeneralSecurityException {
+      super("RSA");
+      rsa = KeyPairGenerator.getInstance("RSA");
+      rsa.initialize(1024); // Smaller than on device, but fast enough to regenerate often.
+    }
+
+    @Override public void initialize(AlgorithmParameterSpec params, SecureRandom random) {
+      alias = ((KeyGenParameterSpec) params).getKeystoreAlias();
+      serialNumber = ((KeyGenParameterSpec) params).getCertificateSerialNumber();
+    }
+
+    @Override public KeyPair generateKeyPair() {
+      KeyPair keyPair = rsa.generateKeyPair();
+      X509Certificate certificate = mock(X509Certificate.class);
+      when(certificate.getPublicKey()).thenReturn(keyPair.getPublic());
+      when(certificate.getSerialNumber()).thenReturn(serialNumber);
+      certificates.put(alias, certificate);
+      keyPairs.put(alias, keyPair);
+      generatedKeys.incrementAndGet();
+      return keyPair;
+    }
+  }
+
+  private final class Spi extends KeyStoreSpi {
+    @Override public Key engineGetKey(String alias, char[] password) {
+      keyLookups.incrementAndGet();
+      KeyPair keyPair = keyPairs.get(alias);
+      return keyPair != null ? keyPair.getPrivate() : null;
+    }
+
+    @Override public Certificate[] engineGetCertificateChain(String alias) {
+      Certificate certificate = engineGetCertificate(alias);
+      return certificate != null ? new Certificate[] { certificate } : null;
+    }
+
+    @Override public Certificate engineGetCertificate(String alias) {
+      return certificates.get(alias);
+    }
+
+    @Override public Date engineGetCreationDate(String alias) {
+      return null;
+    }
+
+    @Override public void engineSetKeyEntry(String alias, Key key, char[] password,
+        Certificate[] chain) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public void engineSetCertificateEntry(String alias, Certificate cert) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public void engineDeleteEntry(String alias) {
+      keyPairs.remove(alias);
+      certificates.remove(alias);
+    }
+
+    @Override public Enumeration<String> engineAliases() {
+      return Collections.enumeration(keyPairs.keySet());
+    }
+
+    @Override public boolean engineContainsAlias(String alias) {
+      return keyPairs.containsKey(alias);
+    }
+
+    @Override public int engineSize() {
+      return keyPairs.size();
+    }
+
+    @Override public boolean engineIsKeyEntry(String alias) {
+      return keyPairs.containsKey(alias);
+    }
+
+    @Override public boolean engineIsCertificateEntry(String alias) {
+      return false;
+    }
+
+    @Override public String engineGetCertificateAlias(Certificate cert) {
+      return null;
+    }
+
+    @Override public void engineStore(OutputStream stream, char[] password) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public void engineLoad(InputStream stream, char[] password) {
+    }
+  }
+}
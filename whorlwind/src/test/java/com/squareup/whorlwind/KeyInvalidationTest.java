@@ -0,0 +1,189 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import io.reactivex.Completable;
+import io.reactivex.Maybe;
+import io.reactivex.Single;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.TestScheduler;
+import io.reactivex.subjects.CompletableSubject;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.whorlwind.TestWhorlwinds.builder;
+import static com.squareup.whorlwind.TestWhorlwinds.readValue;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M) //
+@SuppressLint("NewApi") //
+public final class KeyInvalidationTest {
+  private final FakeKeyStore keyStore = new FakeKeyStore();
+  private final FakeFingerprintSensor sensor = new FakeFingerprintSensor(0);
+  private final MemoryStorage storage = new MemoryStorage();
+  private final TestScheduler maintenance = new TestScheduler();
+  private RealWhorlwind whorlwind;
+
+  @Before public void setUp() {
+    whorlwind = create(new BlockingAsyncStorage(storage));
+  }
+
+  @Test public void readAfterInvalidationIsEmptyWithoutWaitingForKey() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("a")).blockingAwait();
+    whorlwind.write("b", ByteString.encodeUtf8("b")).blockingAwait();
+    maintenance.triggerActions();
+    keyStore.invalidate("test");
+
+    assertThat(readValue(whorlwind.read("a"))).isNull();
+    assertThat(sensor.activations.get()).isEqualTo(0);
+    assertThat(keyStore.generatedKeys.get()).isEqualTo(1);
+    assertThat(storage.names()).containsExactly("a", "b");
+
+    maintenance.triggerActions();
+    assertThat(keyStore.generatedKeys.get()).isEqualTo(2);
+    assertThat(storage.names()).isEmpty();
+  }
+
+  @Test public void valuesFromOldKeyAreAbsentUntilPurged() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("old a")).blockingAwait();
+    whorlwind.write("b", ByteString.encodeUtf8("old b")).blockingAwait();
+    maintenance.triggerActions();
+    keyStore.invalidate("test");
+
+    whorlwind.write("a", ByteString.encodeUtf8("new a")).blockingAwait();
+    assertThat(keyStore.generatedKeys.get()).isEqualTo(2);
+    assertThat(storage.names()).containsExactly("a", "b");
+    assertThat(readValue(whorlwind.read("b"))).isNull();
+    assertThat(readValue(whorlwind.read("a"))).isEqualTo(ByteString.encodeUtf8("new a"));
+
+    maintenance.triggerActions();
+    assertThat(storage.names()).containsExactly("a");
+    assertThat(readValue(whorlwind.read("a"))).isEqualTo(ByteString.encodeUtf8("new a"));
+  }
+
+  @Test public void legacyValuesArePurgedOnceKeyIsGenerated() throws Exception {
+    // A bare RSA block written before values had a header.
+    storage.put("legacy", ByteString.of(new byte[128]));
+
+    whorlwind.write("a", ByteString.encodeUtf8("a")).blockingAwait();
+    maintenance.triggerActions();
+
+    assertThat(storage.names()).containsExactly("a");
+  }
+
+  @Test public void legacyValuesStayStaleInLaterProcesses() throws Exception {
+    storage.put("legacy", ByteString.of(new byte[128]));
+    whorlwind.write("a", ByteString.encodeUtf8("a")).blockingAwait();
+
+    // A later process which didn't generate the key.
+    Whorlwind.Builder builder = builder(storage);
+    builder.maintenanceScheduler = new TestScheduler();
+    whorlwind = TestWhorlwinds.create(builder, sensor, keyStore);
+
+    assertThat(readValue(whorlwind.read("legacy"))).isNull();
+    assertThat(sensor.activations.get()).isEqualTo(0);
+  }
+
+  @Test public void purgeReadsEachKeyPairOncePerPass() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      whorlwind.write("key" + i, ByteString.encodeUtf8("a")).blockingAwait();
+      whorlwind.write("at-rest" + i, ByteString.encodeUtf8("a"), Protection.AT_REST)
+          .blockingAwait();
+    }
+    maintenance.triggerActions();
+
+    keyStore.keyLookups.set(0);
+    whorlwind.purgeAll(storage.names());
+    assertThat(keyStore.keyLookups.get()).isEqualTo(2);
+    assertThat(storage.names()).hasSize(20);
+  }
+
+  @Test public void purgeOnlyWaitsForNamesBeingWritten() throws Exception {
+    ControlledStorage async = new ControlledStorage();
+    whorlwind = create(async);
+
+    whorlwind.write("a", ByteString.encodeUtf8("a")).blockingAwait();
+    whorlwind.write("busy", ByteString.encodeUtf8("old")).blockingAwait();
+    maintenance.triggerActions();
+    keyStore.invalidate("test");
+
+    CompletableSubject busyPut = CompletableSubject.create();
+    async.putGate = busyPut;
+    TestObserver<Void> write = whorlwind.write("busy", ByteString.encodeUtf8("new")).test();
+    maintenance.triggerActions();
+    write.assertNotComplete();
+    assertThat(storage.names()).containsExactly("busy");
+
+    busyPut.onComplete();
+    write.assertComplete();
+    maintenance.advanceTimeBy(1, TimeUnit.SECONDS);
+    assertThat(storage.names()).containsExactly("busy");
+    assertThat(readValue(whorlwind.read("busy"))).isEqualTo(ByteString.encodeUtf8("new"));
+  }
+
+  @Test public void putFailingToStartDoesNotHoldUpPurge() throws Exception {
+    ControlledStorage async = new ControlledStorage();
+    whorlwind = create(async);
+
+    whorlwind.write("a", ByteString.encodeUtf8("a")).blockingAwait();
+    maintenance.triggerActions();
+    keyStore.invalidate("test");
+
+    async.failPuts = true;
+    whorlwind.write("a", ByteString.encodeUtf8("new")).test() //
+        .assertError(IllegalStateException.class);
+    maintenance.triggerActions();
+    assertThat(storage.names()).isEmpty();
+  }
+
+  /** Purges only when {@link #maintenance} is triggered. */
+  private RealWhorlwind create(AsyncStorage storage) {
+    Whorlwind.Builder builder = builder(storage);
+    builder.maintenanceScheduler = maintenance;
+    return TestWhorlwinds.create(builder, sensor, keyStore);
+  }
+
+  /** Stores in {@link #storage}, except that puts can be held back or fail before starting. */
+  private final class ControlledStorage implements AsyncStorage {
+    private final AsyncStorage direct = new BlockingAsyncStorage(storage);
+    @Nullable Completable putGate;
+    boolean failPuts;
+
+    @Override public Completable clear() {
+      return direct.clear();
+    }
+
+    @Override public Completable remove(@NonNull String name) {
+      return direct.remove(name);
+    }
+
+    @Override public Completable put(@NonNull String name, @NonNull ByteString value) {
+      if (failPuts) {
+        throw new IllegalStateException("Storage is broken.");
+      }
+      Completable put = direct.put(name, value);
+      return putGate != null ? putGate.andThen(put) : put;
+    }
+
+    @Override public Maybe<ByteString> get(@NonNull String name) {
+      return direct.get(name);
+    }
+
+    @Override public Single<Set<String>> names() {
+      return direct.names();
+    }
+
+    @Override public Completable flush() {
+      return direct.flush();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.squareup.whorlwind;
+
+import android.app.Application;
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import okio.ByteString;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE) //
+public final class MemoryBudgetTest {
+  private final MemoryStorage delegate = new MemoryStorage();
+  private final CachingStorage storage = new CachingStorage(delegate, 1000);
+
+  @After public void tearDown() {
+    MemoryBudget.setMaxBytes(MemoryBudget.DEFAULT_MAX_BYTES);
+  }
+
+  @Test public void cachesShrinkToBudget() {
+    MemoryBudget.setMaxBytes(25);
+    for (int i = 0; i < 10; i++) {
+      storage.put("name" + i, ByteString.encodeUtf8("0123456789"));
+    }
+
+    assertThat(storage.size()).isAtMost(25);
+    // The least recently used values are dropped first.
+    delegate.gets = 0;
+    assertThat(storage.get("name0")).isEqualTo(ByteString.encodeUtf8("0123456789"));
+    assertThat(delegate.gets).isEqualTo(1);
+  }
+
+  @Test public void runningLowHalves() {
+    for (int i = 0; i < 10; i++) {
+      storage.put("name" + i, ByteString.encodeUtf8("0123456789"));
+    }
+    assertThat(storage.size()).isEqualTo(100);
+
+    MemoryBudget.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+    assertThat(storage.size()).isAtMost(50);
+    assertThat(storage.size()).isGreaterThan(0);
+  }
+
+  @Test public void cachesShareWhatFixedStructuresLeave() {
+    SharedPreferencesStorage prefs =
+        new SharedPreferencesStorage(RuntimeEnvironment.application, "shares");
+    for (int i = 0; i < 10; i++) {
+      prefs.put("merchant/" + i, ByteString.encodeUtf8("a"));
+    }
+    assertThat(prefs.namesWithPrefix("merchant/")).hasSize(10);
+    long before = MemoryBudget.retainedBytes();
+    for (int i = 0; i < 10; i++) {
+      storage.put("name" + i, ByteString.encodeUtf8("0123456789"));
+    }
+
+    // The index can't be partially released, so the cache shrinks to what it leaves.
+    MemoryBudget.setMaxBytes(before + 50);
+    assertThat(MemoryBudget.retainedBytes()).isAtMost(before + 50);
+    assertThat(storage.size()).isAtMost(50);
+    assertThat(storage.size()).isGreaterThan(0);
+  }
+
+  @Test public void retainedBytesFollowCachedValues() {
+    long before = MemoryBudget.retainedBytes();
+    storage.put("a", ByteString.encodeUtf8("aaa"));
+    storage.put("b", ByteString.encodeUtf8("bb"));
+    assertThat(MemoryBudget.retainedBytes()).isEqualTo(before + 5);
+
+    storage.put("a", ByteString.encodeUtf8("a"));
+    storage.remove("b");
+    assertThat(MemoryBudget.retainedBytes()).isEqualTo(before + 1);
+  }
+
+  @Test public void backgroundDropsEverything() {
+    MemoryBudget.install(RuntimeEnvironment.application);
+    storage.put("a", ByteString.encodeUtf8("aaa"));
+    SharedPreferencesStorage prefs =
+        new SharedPreferencesStorage(RuntimeEnvironment.application, "budget");
+    prefs.put("merchant/1", ByteString.encodeUtf8("aaa"));
+    assertThat(prefs.namesWithPrefix("merchant/")).containsExactly("merchant/1");
+    assertThat(MemoryBudget.retainedBytes()).isGreaterThan(0L);
+
+    RuntimeEnvironment.application.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+    assertThat(storage.size()).isEqualTo(0);
+    assertThat(MemoryBudget.retainedBytes()).isEqualTo(0L);
+
+    // Dropped structures are rebuilt when they're needed again.
+    assertThat(storage.get("a")).isEqualTo(ByteString.encodeUtf8("aaa"));
+    assertThat(prefs.namesWithPrefix("merchant/")).containsExactly("merchant/1");
+  }
+
+  @Test public void installsOncePerApplication() {
+    Application application = mock(Application.class);
+    MemoryBudget.install(application);
+    MemoryBudget.install(application);
+    verify(application).registerComponentCallbacks(any(ComponentCallbacks2.class));
+  }
+
+  @Test public void installWaitsForApplicationContext() {
+    Context context = mock(Context.class);
+    MemoryBudget.install(context);
+    verify(context, never()).registerComponentCallbacks(any(ComponentCallbacks.class));
+  }
+
+  @Test public void invalidMaxBytes() {
+    try {
+      MemoryBudget.setMaxBytes(0);
+      throw new AssertionError();
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().isEqualTo("maxBytes <= 0: 0");
+    }
+  }
+}
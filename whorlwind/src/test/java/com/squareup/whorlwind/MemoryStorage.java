@@ -0,0 +1,37 @@
+package com.squareup.whorlwind;
+
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import okio.ByteString;
+
+/** A thread-safe {@link Storage} which keeps values in memory and counts reads. */
+final class MemoryStorage implements Storage {
+  private final Map<String, ByteString> values = new LinkedHashMap<>();
+  int gets;
+
+  @Override public synchronized void clear() {
+    values.clear();
+  }
+
+  @Override public synchronized void remove(@NonNull String name) {
+    values.remove(name);
+  }
+
+  @Override public synchronized void put(@NonNull String name, @NonNull ByteString value) {
+    values.put(name, value);
+  }
+
+  @CheckResult @Override public synchronized ByteString get(@NonNull String name) {
+    gets++;
+    return values.get(name);
+  }
+
+  @CheckResult @Override public synchronized Set<String> names() {
+    return Collections.unmodifiableSet(new LinkedHashSet<>(values.keySet()));
+  }
+}
@@ -0,0 +1,77 @@
+package com.squareup.whorlwind;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import okio.ByteString;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE) //
+public final class MultiProcessStorageTest {
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test public void putGetRemove() {
+    MultiProcessStorage storage = new MultiProcessStorage(temporaryFolder.getRoot(), "test");
+    assertThat(storage.get("a")).isNull();
+
+    storage.put("a", ByteString.encodeUtf8("a"));
+    storage.put("b", ByteString.encodeUtf8("b"));
+    assertThat(storage.get("a")).isEqualTo(ByteString.encodeUtf8("a"));
+    assertThat(storage.names()).containsExactly("a", "b").inOrder();
+
+    storage.remove("a");
+    assertThat(storage.get("a")).isNull();
+
+    storage.clear();
+    assertThat(storage.names()).isEmpty();
+  }
+
+  @Test public void putAllIsSeenByOtherInstances() {
+    MultiProcessStorage first = new MultiProcessStorage(temporaryFolder.getRoot(), "test");
+    MultiProcessStorage second = new MultiProcessStorage(temporaryFolder.getRoot(), "test");
+    first.put("a", ByteString.encodeUtf8("old"));
+
+    Map<String, ByteString> values = new LinkedHashMap<>();
+    values.put("a", ByteString.encodeUtf8("a"));
+    values.put("b", ByteString.encodeUtf8("b"));
+    first.putAll(values);
+
+    assertThat(second.names()).containsExactly("a", "b").inOrder();
+    assertThat(second.get("a")).isEqualTo(ByteString.encodeUtf8("a"));
+  }
+
+  @Test public void valuesArePersisted() {
+    new MultiProcessStorage(temporaryFolder.getRoot(), "test") //
+        .put("a", ByteString.encodeUtf8("a"));
+
+    File directory = temporaryFolder.getRoot();
+    assertThat(new File(directory, "test").exists()).isTrue();
+    assertThat(new MultiProcessStorage(directory, "test").get("a")) //
+        .isEqualTo(ByteString.encodeUtf8("a"));
+  }
+
+  /** Separate instances keep separate values in memory, just like separate processes. */
+  @Test public void writesAreSeenByOtherInstances() {
+    MultiProcessStorage first = new MultiProcessStorage(temporaryFolder.getRoot(), "test");
+    MultiProcessStorage second = new MultiProcessStorage(temporaryFolder.getRoot(), "test");
+
+    first.put("a", ByteString.encodeUtf8("first"));
+    assertThat(second.get("a")).isEqualTo(ByteString.encodeUtf8("first"));
+
+    second.put("a", ByteString.encodeUtf8("second"));
+    second.put("b", ByteString.encodeUtf8("second"));
+    assertThat(first.get("a")).isEqualTo(ByteString.encodeUtf8("second"));
+    assertThat(first.names()).containsExactly("a", "b").inOrder();
+
+    first.clear();
+    assertThat(second.names()).isEmpty();
+  }
+}
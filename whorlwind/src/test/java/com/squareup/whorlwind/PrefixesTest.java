@@ -0,0 +1,15 @@
+package com.squareup.whorlwind;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public final class PrefixesTest {
+  @Test public void end() {
+    assertThat(Prefixes.end("merchant/")).isEqualTo("merchant0");
+    assertThat(Prefixes.end("a")).isEqualTo("b");
+    assertThat(Prefixes.end("a\uffff\uffff")).isEqualTo("b");
+    assertThat(Prefixes.end("\uffff")).isNull();
+    assertThat(Prefixes.end("")).isNull();
+  }
+}
@@ -0,0 +1,111 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import io.reactivex.schedulers.TestScheduler;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.whorlwind.TestWhorlwinds.builder;
+import static com.squareup.whorlwind.TestWhorlwinds.create;
+import static com.squareup.whorlwind.TestWhorlwinds.readValue;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M) //
+@SuppressLint("NewApi") //
+public final class PreparedReadTest {
+  private final FakeKeyStore keyStore = new FakeKeyStore();
+  private final FakeFingerprintSensor sensor = new FakeFingerprintSensor(0);
+  private final MemoryStorage storage = new MemoryStorage();
+  private final TestScheduler sensorScheduler = new TestScheduler();
+  private RealWhorlwind whorlwind;
+
+  @Before public void setUp() {
+    Whorlwind.Builder builder = builder(storage);
+    builder.sensorScheduler = sensorScheduler;
+    whorlwind = create(builder, sensor, keyStore);
+  }
+
+  @Test public void readUsesPreparation() throws InterruptedException {
+    whorlwind.write("a", ByteString.encodeUtf8("value")).blockingAwait();
+    PreparedRead prepared = whorlwind.prepareRead("a").blockingGet();
+    assertThat(prepared.name).isEqualTo("a");
+
+    storage.gets = 0;
+    assertThat(readValue(prepared.read())).isEqualTo(ByteString.encodeUtf8("value"));
+    assertThat(storage.gets).isEqualTo(0);
+  }
+
+  @Test public void preparationIsOnlyUsedOnce() throws InterruptedException {
+    whorlwind.write("a", ByteString.encodeUtf8("value")).blockingAwait();
+    PreparedRead prepared = whorlwind.prepareRead("a").blockingGet();
+
+    assertThat(readValue(prepared.read())).isEqualTo(ByteString.encodeUtf8("value"));
+    storage.gets = 0;
+    assertThat(readValue(prepared.read())).isEqualTo(ByteString.encodeUtf8("value"));
+    assertThat(storage.gets).isEqualTo(1);
+  }
+
+  @Test public void writeAfterPreparationIsRead() throws InterruptedException {
+    whorlwind.write("a", ByteString.encodeUtf8("old")).blockingAwait();
+    PreparedRead prepared = whorlwind.prepareRead("a").blockingGet();
+
+    whorlwind.write("a", ByteString.encodeUtf8("new")).blockingAwait();
+    assertThat(readValue(prepared.read())).isEqualTo(ByteString.encodeUtf8("new"));
+  }
+
+  @Test public void writeToAnotherNameKeepsPreparation() throws InterruptedException {
+    whorlwind.write("a", ByteString.encodeUtf8("value")).blockingAwait();
+    PreparedRead prepared = whorlwind.prepareRead("a").blockingGet();
+
+    whorlwind.write("b", ByteString.encodeUtf8("other")).blockingAwait();
+    storage.gets = 0;
+    assertThat(readValue(prepared.read())).isEqualTo(ByteString.encodeUtf8("value"));
+    assertThat(storage.gets).isEqualTo(0);
+  }
+
+  @Test public void releasedPreparationIsNotUsed() throws InterruptedException {
+    whorlwind.write("a", ByteString.encodeUtf8("value")).blockingAwait();
+    PreparedRead prepared = whorlwind.prepareRead("a").blockingGet();
+
+    prepared.release();
+    storage.gets = 0;
+    assertThat(readValue(prepared.read())).isEqualTo(ByteString.encodeUtf8("value"));
+    assertThat(storage.gets).isEqualTo(1);
+  }
+
+  @Test public void unusedPreparationExpires() throws InterruptedException {
+    whorlwind.write("a", ByteString.encodeUtf8("value")).blockingAwait();
+    PreparedRead prepared = whorlwind.prepareRead("a").blockingGet();
+
+    sensorScheduler.advanceTimeBy(29, TimeUnit.SECONDS);
+    PreparedRead fresh = whorlwind.prepareRead("a").blockingGet();
+    sensorScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+    storage.gets = 0;
+    assertThat(readValue(prepared.read())).isEqualTo(ByteString.encodeUtf8("value"));
+    assertThat(storage.gets).isEqualTo(1);
+
+    // Younger preparations are kept.
+    storage.gets = 0;
+    assertThat(readValue(fresh.read())).isEqualTo(ByteString.encodeUtf8("value"));
+    assertThat(storage.gets).isEqualTo(0);
+  }
+
+  @Test public void keyChangeAfterPreparationIsSeen() throws InterruptedException {
+    whorlwind.write("a", ByteString.encodeUtf8("value")).blockingAwait();
+    PreparedRead prepared = whorlwind.prepareRead("a").blockingGet();
+
+    keyStore.invalidate("test");
+    whorlwind.write("b", ByteString.encodeUtf8("value")).blockingAwait();
+
+    // Values encrypted with the old key are treated as absent.
+    assertThat(readValue(prepared.read())).isNull();
+    assertThat(keyStore.generatedKeys.get()).isEqualTo(2);
+  }
+}
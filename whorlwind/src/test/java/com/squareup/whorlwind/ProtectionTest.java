@@ -0,0 +1,70 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import io.reactivex.observers.TestObserver;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.whorlwind.TestWhorlwinds.create;
+import static com.squareup.whorlwind.TestWhorlwinds.readValue;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M) //
+@SuppressLint("NewApi") //
+public final class ProtectionTest {
+  private final FakeKeyStore keyStore = new FakeKeyStore();
+  private final FakeFingerprintSensor sensor = new FakeFingerprintSensor(0);
+  private final MemoryStorage storage = new MemoryStorage();
+  private RealWhorlwind whorlwind;
+
+  @Before public void setUp() {
+    whorlwind = create(storage, sensor, keyStore);
+  }
+
+  @Test public void atRestReadsWithoutSensor() {
+    whorlwind.write("id", ByteString.encodeUtf8("device"), Protection.AT_REST).blockingAwait();
+
+    TestObserver<ReadResult> observer = whorlwind.read("id").test();
+    observer.assertComplete();
+    observer.assertValueCount(1);
+    ReadResult result = observer.values().get(0);
+    assertThat(result.readState).isEqualTo(ReadResult.ReadState.READY);
+    assertThat(result.value).isEqualTo(ByteString.encodeUtf8("device"));
+    assertThat(sensor.activations.get()).isEqualTo(0);
+  }
+
+  @Test public void tiersShareStorage() throws Exception {
+    whorlwind.write("id", ByteString.encodeUtf8("device"), Protection.AT_REST).blockingAwait();
+    whorlwind.write("token", ByteString.encodeUtf8("secret")).blockingAwait();
+
+    assertThat(storage.names()).containsExactly("id", "token");
+    assertThat(keyStore.generatedKeys.get()).isEqualTo(2);
+    assertThat(readValue(whorlwind.read("token"))).isEqualTo(ByteString.encodeUtf8("secret"));
+    assertThat(sensor.activations.get()).isEqualTo(1);
+  }
+
+  @Test public void writeReplacesValueOfOtherProtection() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("secret")).blockingAwait();
+    whorlwind.write("a", ByteString.encodeUtf8("plain"), Protection.AT_REST).blockingAwait();
+
+    assertThat(readValue(whorlwind.read("a"))).isEqualTo(ByteString.encodeUtf8("plain"));
+    assertThat(sensor.activations.get()).isEqualTo(0);
+  }
+
+  @Test public void atRestSurvivesAuthenticatedKeyInvalidation() throws Exception {
+    whorlwind.write("id", ByteString.encodeUtf8("device"), Protection.AT_REST).blockingAwait();
+    whorlwind.write("token", ByteString.encodeUtf8("secret")).blockingAwait();
+
+    keyStore.invalidate("test");
+
+    assertThat(readValue(whorlwind.read("token"))).isNull();
+    assertThat(readValue(whorlwind.read("id"))).isEqualTo(ByteString.encodeUtf8("device"));
+    assertThat(storage.names()).containsExactly("id");
+  }
+}
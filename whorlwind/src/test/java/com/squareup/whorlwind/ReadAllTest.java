@@ -0,0 +1,119 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import com.squareup.whorlwind.ReadResult.ReadState;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subscribers.TestSubscriber;
+import java.util.List;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.whorlwind.TestWhorlwinds.builder;
+import static com.squareup.whorlwind.TestWhorlwinds.create;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M) //
+@SuppressLint("NewApi") //
+public final class ReadAllTest {
+  private final FakeKeyStore keyStore = new FakeKeyStore();
+  private final FakeFingerprintSensor sensor = new FakeFingerprintSensor();
+  private final MemoryStorage storage = new MemoryStorage();
+  private RealWhorlwind whorlwind;
+
+  @Before public void setUp() {
+    Whorlwind.Builder builder = builder(storage);
+    builder.decryptScheduler = Schedulers.trampoline();
+    whorlwind = create(builder, sensor, keyStore);
+  }
+
+  @Test public void emptyStoreCompletes() {
+    TestSubscriber<Entry> subscriber = whorlwind.readAll().test();
+    subscriber.assertNoValues();
+    subscriber.assertComplete();
+  }
+
+  @Test public void readsInNameOrder() {
+    write("b", "bbb");
+    write("a", "aaa");
+    write("c", "ccc");
+
+    TestSubscriber<Entry> subscriber = whorlwind.readAll().test();
+    subscriber.assertComplete();
+    List<Entry> entries = subscriber.values();
+    assertThat(entries).hasSize(3);
+    assertThat(entries.get(0).name).isEqualTo("b");
+    assertThat(entries.get(0).result.value).isEqualTo(ByteString.encodeUtf8("bbb"));
+    assertThat(entries.get(1).name).isEqualTo("a");
+    assertThat(entries.get(2).name).isEqualTo("c");
+    assertThat(sensor.activations.get()).isEqualTo(0);
+  }
+
+  @Test public void nextReadWaitsForTerminalState() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("aaa")).blockingAwait();
+    write("b", "bbb");
+    storage.gets = 0;
+
+    TestSubscriber<Entry> subscriber = whorlwind.readAll().test();
+    subscriber.assertValueCount(1);
+    assertThat(subscriber.values().get(0).result.readState).isEqualTo(ReadState.NEEDS_AUTH);
+    assertThat(storage.gets).isEqualTo(1);
+
+    sensor.touch();
+    subscriber.assertValueCount(3);
+    subscriber.assertComplete();
+    List<Entry> entries = subscriber.values();
+    assertThat(entries.get(1).name).isEqualTo("a");
+    assertThat(entries.get(1).result.readState).isEqualTo(ReadState.READY);
+    assertThat(entries.get(1).result.value).isEqualTo(ByteString.encodeUtf8("aaa"));
+    assertThat(entries.get(2).name).isEqualTo("b");
+  }
+
+  @Test public void onlyReadsWhenRequested() throws Exception {
+    write("a", "aaa");
+    whorlwind.write("b", ByteString.encodeUtf8("bbb")).blockingAwait();
+    storage.gets = 0;
+
+    TestSubscriber<Entry> subscriber = whorlwind.readAll().test(0);
+    assertThat(storage.gets).isEqualTo(0);
+
+    subscriber.request(1);
+    subscriber.assertValueCount(1);
+    assertThat(storage.gets).isEqualTo(1);
+    assertThat(sensor.activations.get()).isEqualTo(0);
+
+    subscriber.request(1);
+    assertThat(sensor.activations.get()).isEqualTo(1);
+    subscriber.assertValueCount(2);
+
+    // The reader's state arrives without demand and is held until it is requested.
+    sensor.touch();
+    subscriber.assertValueCount(2);
+    subscriber.assertNotComplete();
+    subscriber.request(1);
+    subscriber.assertValueCount(3);
+    assertThat(subscriber.values().get(2).result.value).isEqualTo(ByteString.encodeUtf8("bbb"));
+    subscriber.assertComplete();
+  }
+
+  @Test public void cancelStopsReader() throws Exception {
+    whorlwind.write("a", ByteString.encodeUtf8("aaa")).blockingAwait();
+    write("b", "bbb");
+
+    TestSubscriber<Entry> subscriber = whorlwind.readAll().test();
+    subscriber.assertValueCount(1);
+    subscriber.cancel();
+    sensor.awaitIdle();
+    assertThat(sensor.cancellations.get()).isEqualTo(1);
+    subscriber.assertValueCount(1);
+  }
+
+  private void write(String name, String value) {
+    whorlwind.write(name, ByteString.encodeUtf8(value), Protection.AT_REST).blockingAwait();
+  }
+}
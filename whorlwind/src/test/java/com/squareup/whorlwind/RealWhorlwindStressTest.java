@@ -0,0 +1,251 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.Schedulers;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static com.squareup.whorlwind.TestWhorlwinds.KEY_ALIAS;
+import static com.squareup.whorlwind.TestWhorlwinds.builder;
+import static com.squareup.whorlwind.TestWhorlwinds.create;
+import static com.squareup.whorlwind.TestWhorlwinds.readValue;
+
+/**
+ * Hammers the read and write paths from many threads at once with a fake sensor and an in-memory
+ * key store, then checks that every read saw a value which was actually written, that no read
+ * failed to decrypt, and that nothing was left stuck.
+ *
+ * <p>Each run measures its throughput and the latency percentiles of each operation, which are
+ * part of every failure message. Run with {@code -Dwhorlwind.stress.report=true} to also print
+ * them, so that changes to locking or caching can be compared run over run.
+ */
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M) //
+@SuppressLint("NewApi") //
+public final class RealWhorlwindStressTest {
+  private static final long SEED = 1234;
+  private static final int THREADS = 8;
+  private static final int OPERATIONS_PER_THREAD = 150;
+  private static final int NAMES = 16;
+  /** Prints each run's throughput and latencies when set. */
+  private static final boolean REPORT = Boolean.getBoolean("whorlwind.stress.report");
+
+  private final FakeKeyStore keyStore = new FakeKeyStore();
+  private final FakeFingerprintSensor sensor = new FakeFingerprintSensor(SEED);
+  private final MemoryStorage storage = new MemoryStorage();
+  private RealWhorlwind whorlwind;
+
+  /** Every value ever written per name. A successful read must return one of them. */
+  private final Map<String, Set<String>> written = new ConcurrentHashMap<>();
+  private final Map<Operation, List<Long>> latencies = new ConcurrentHashMap<>();
+  private final List<Throwable> unexpected = new CopyOnWriteArrayList<>();
+  private final AtomicInteger readsVerified = new AtomicInteger();
+  private final AtomicInteger readsMissing = new AtomicInteger();
+  private final AtomicInteger readsBusy = new AtomicInteger();
+
+  enum Operation {
+    WRITE, REMOVE, READ, READ_AND_DISPOSE, INVALIDATE_KEY
+  }
+
+  @Before public void setUp() {
+    Whorlwind.Builder builder = builder(storage);
+    // Purge on a background thread as in production, so that retrying busy names doesn't stall a
+    // worker.
+    builder.maintenanceScheduler = null;
+    // Decrypt on the sensor's thread, so that awaiting it also awaits disposed reads releasing it.
+    builder.decryptScheduler = Schedulers.trampoline();
+    whorlwind = create(builder, sensor, keyStore);
+    for (int i = 0; i < NAMES; i++) {
+      written.put("name" + i, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+    }
+    for (Operation operation : Operation.values()) {
+      latencies.put(operation, new CopyOnWriteArrayList<Long>());
+    }
+  }
+
+  @Test public void concurrentReadsAndWrites() throws Exception {
+    String report = run("reads/writes", false);
+
+    assertWithMessage(report).that(unexpected).isEmpty();
+    assertWithMessage(report).that(readsVerified.get()).isGreaterThan(0);
+    assertWithMessage(report).that(keyStore.generatedKeys.get()).isEqualTo(1);
+    assertReadable();
+  }
+
+  @Test public void concurrentReadsAndWritesWithKeyInvalidation() throws Exception {
+    String report = run("reads/writes/invalidation", true);
+
+    assertWithMessage(report).that(unexpected).isEmpty();
+    assertWithMessage(report).that(readsVerified.get()).isGreaterThan(0);
+    assertReadable();
+  }
+
+  /** Returns the run's throughput and latencies. */
+  private String run(String label, final boolean invalidateKeys) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(THREADS);
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      new Thread(new Runnable() {
+        @Override public void run() {
+          Random random = new Random(SEED + thread);
+          try {
+            start.await();
+            for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+              perform(pick(random, invalidateKeys), "name" + random.nextInt(NAMES),
+                  thread + "-" + i, random);
+            }
+          } catch (Throwable t) {
+            unexpected.add(t);
+          } finally {
+            done.countDown();
+          }
+        }
+      }, "stress-" + t).start();
+    }
+
+    long startNanos = System.nanoTime();
+    start.countDown();
+    assertWithMessage("Workers hung").that(done.await(2, TimeUnit.MINUTES)).isTrue();
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    String report = report(label, elapsedNanos);
+    if (REPORT) {
+      System.out.print(report);
+    }
+    return report;
+  }
+
+  private static Operation pick(Random random, boolean invalidateKeys) {
+    int roll = random.nextInt(100);
+    if (roll < 35) return Operation.WRITE;
+    if (roll < 45) return Operation.REMOVE;
+    if (roll < 80) return Operation.READ;
+    if (roll < 97 || !invalidateKeys) return Operation.READ_AND_DISPOSE;
+    return Operation.INVALIDATE_KEY;
+  }
+
+  private void perform(Operation operation, String name, String tag, Random random) {
+    long startNanos = System.nanoTime();
+    switch (operation) {
+      case WRITE:
+        String value = name + "#" + tag;
+        written.get(name).add(value);
+        whorlwind.write(name, ByteString.encodeUtf8(value)).blockingAwait();
+        break;
+      case REMOVE:
+        whorlwind.write(name, null).blockingAwait();
+        break;
+      case READ:
+        read(name);
+        break;
+      case READ_AND_DISPOSE:
+        TestObserver<ReadResult> observer = whorlwind.read(name).test();
+        if (random.nextBoolean()) {
+          Thread.yield();
+        }
+        observer.dispose();
+        break;
+      case INVALIDATE_KEY:
+        // Whorlwind assumes the key doesn't disappear while it holds the lock.
+        synchronized (whorlwind.dataLock) {
+          keyStore.invalidate(KEY_ALIAS);
+        }
+        break;
+      default:
+        throw new AssertionError(operation);
+    }
+    latencies.get(operation).add(System.nanoTime() - startNanos);
+  }
+
+  private void read(String name) {
+    TestObserver<ReadResult> observer = whorlwind.read(name).test();
+    try {
+      if (!observer.await(10, TimeUnit.SECONDS)) {
+        observer.dispose();
+        unexpected.add(new AssertionError("Read of " + name + " hung"));
+        return;
+      }
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+
+    List<Throwable> errors = observer.errors();
+    if (!errors.isEmpty()) {
+      Throwable error = errors.get(0);
+      // Only one read may use the sensor at a time. Anything else, including a value which can't
+      // be decrypted with its key, is a bug.
+      if (error instanceof IllegalStateException
+          && "Already attempting to read another value.".equals(error.getMessage())) {
+        readsBusy.incrementAndGet();
+      } else {
+        unexpected.add(error);
+      }
+      return;
+    }
+
+    List<ReadResult> results = observer.values();
+    ReadResult last = results.get(results.size() - 1);
+    if (last.readState != ReadResult.ReadState.READY) {
+      unexpected.add(new AssertionError("Read ended in " + last.readState));
+    } else if (last.value == null) {
+      readsMissing.incrementAndGet();
+    } else if (!written.get(name).contains(last.value.utf8())) {
+      unexpected.add(new AssertionError("Read " + last.value.utf8() + " for " + name));
+    } else {
+      readsVerified.incrementAndGet();
+    }
+  }
+
+  /** Nothing is left holding the sensor or the lock, and a fresh value round-trips. */
+  private void assertReadable() throws Exception {
+    sensor.awaitIdle();
+    whorlwind.write("final", ByteString.encodeUtf8("value")).blockingAwait();
+    assertThat(readValue(whorlwind.read("final"))).isEqualTo(ByteString.encodeUtf8("value"));
+  }
+
+  private String report(String label, long elapsedNanos) {
+    int total = 0;
+    StringBuilder operations = new StringBuilder();
+    for (Operation operation : Operation.values()) {
+      List<Long> samples = new ArrayList<>(latencies.get(operation));
+      if (samples.isEmpty()) continue;
+      total += samples.size();
+      Collections.sort(samples);
+      operations.append(String.format(Locale.US,
+          "  %-16s n=%4d p50=%7.2fms p90=%7.2fms p99=%7.2fms%n", operation, samples.size(),
+          percentile(samples, 50), percentile(samples, 90), percentile(samples, 99)));
+    }
+    return String.format(Locale.US,
+        "%s: %d ops in %.0fms (%.0f ops/s) verified=%d missing=%d busy=%d activations=%d"
+            + " cancellations=%d keys=%d%n%s", label, total, elapsedNanos / 1e6,
+        total / (elapsedNanos / 1e9), readsVerified.get(), readsMissing.get(), readsBusy.get(),
+        sensor.activations.get(), sensor.cancellations.get(), keyStore.generatedKeys.get(),
+        operations);
+  }
+
+  private static double percentile(List<Long> sorted, int percentile) {
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, index)) / 1e6;
+  }
+}
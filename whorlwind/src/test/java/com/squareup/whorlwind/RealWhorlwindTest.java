@@ -57,8 +57,9 @@ public final class RealWhorlwindTest {
   private final KeyStore keyStore = mock(KeyStore.class);
   private final KeyPairGenerator keyGenerator = mock(KeyPairGenerator.class);
   private final KeyFactory keyFactory = mock(KeyFactory.class);
-  private final RealWhorlwind whorlwind = new RealWhorlwind(context, fingerprintManager, storage, //
-      "test", keyStore, keyGenerator, keyFactory);
+  private final RealWhorlwind whorlwind =
+      new RealWhorlwind(new Whorlwind.Builder(context, storage, "test"), fingerprintManager,
+          new KeyStoreRegistry(keyStore, keyGenerator, keyFactory));
 
   @Ignore("Robolectric isn't working.") @Test public void cannotStoreSecurelyWithNoPermission() {
     shadowContext.denyPermissions(USE_FINGERPRINT);
@@ -0,0 +1,104 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import com.squareup.whorlwind.ReadResult.ReadState;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.schedulers.TestScheduler;
+import io.reactivex.subjects.BehaviorSubject;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static android.Manifest.permission.USE_FINGERPRINT;
+import static com.google.common.truth.Truth.assertThat;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.M) //
+@SuppressLint("NewApi") //
+public final class SensorLifecycleTest {
+  private final FakeFingerprintSensor sensor = new FakeFingerprintSensor();
+  private final TestScheduler scheduler = new TestScheduler();
+  private final BehaviorSubject<Boolean> active = BehaviorSubject.createDefault(true);
+  private final Whorlwind.Builder builder =
+      new Whorlwind.Builder(RuntimeEnvironment.application, new MemoryStorage(), "test");
+
+  @Before public void setUp() {
+    shadowOf(RuntimeEnvironment.application).grantPermissions(USE_FINGERPRINT);
+    builder.sensorScheduler = scheduler;
+    builder.resultScheduler = Schedulers.trampoline();
+  }
+
+  @Test public void idleReaderTimesOut() throws Exception {
+    RealWhorlwind whorlwind = create(builder.sensorTimeout(30, TimeUnit.SECONDS));
+    whorlwind.write("a", ByteString.encodeUtf8("a")).blockingAwait();
+
+    TestObserver<ReadResult> observer = whorlwind.read("a").test();
+    scheduler.advanceTimeBy(29, TimeUnit.SECONDS);
+    sensor.awaitIdle();
+    assertThat(sensor.cancellations.get()).isEqualTo(0);
+
+    scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+    assertThat(observer.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(last(observer).readState).isEqualTo(ReadState.TIMED_OUT);
+    assertThat(sensor.cancellations.get()).isEqualTo(1);
+    assertThat(whorlwind.sensorActiveTimeMillis()).isEqualTo(30_000);
+
+    // The reader was released.
+    TestObserver<ReadResult> next = whorlwind.read("a").test();
+    sensor.touch();
+    assertThat(next.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(last(next).value).isEqualTo(ByteString.encodeUtf8("a"));
+  }
+
+  @Test public void pausesAndResumes() throws Exception {
+    RealWhorlwind whorlwind = create(builder.sensorActive(active));
+    whorlwind.write("a", ByteString.encodeUtf8("a")).blockingAwait();
+
+    TestObserver<ReadResult> observer = whorlwind.read("a").test();
+    scheduler.advanceTimeBy(5, TimeUnit.SECONDS);
+    active.onNext(false);
+    sensor.awaitIdle();
+    assertThat(sensor.cancellations.get()).isEqualTo(1);
+    assertThat(whorlwind.sensorActiveTimeMillis()).isEqualTo(5_000);
+    observer.assertNotTerminated();
+    assertThat(observer.values()).hasSize(1); // NEEDS_AUTH
+
+    active.onNext(true);
+    assertThat(sensor.activations.get()).isEqualTo(2);
+    assertThat(whorlwind.sensorActivationCount()).isEqualTo(2);
+    sensor.touch();
+    assertThat(observer.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(last(observer).value).isEqualTo(ByteString.encodeUtf8("a"));
+  }
+
+  @Test public void waitsUntilActive() throws Exception {
+    active.onNext(false);
+    RealWhorlwind whorlwind = create(builder.sensorActive(active));
+    whorlwind.write("a", ByteString.encodeUtf8("a")).blockingAwait();
+
+    TestObserver<ReadResult> observer = whorlwind.read("a").test();
+    assertThat(last(observer).readState).isEqualTo(ReadState.NEEDS_AUTH);
+    assertThat(sensor.activations.get()).isEqualTo(0);
+
+    active.onNext(true);
+    assertThat(sensor.activations.get()).isEqualTo(1);
+  }
+
+  private RealWhorlwind create(Whorlwind.Builder builder) {
+    return new RealWhorlwind(builder, sensor.fingerprintManager, new FakeKeyStore().registry());
+  }
+
+  private static ReadResult last(TestObserver<ReadResult> observer) {
+    List<ReadResult> results = observer.values();
+    return results.get(results.size() - 1);
+  }
+}
@@ -0,0 +1,448 @@
+package com.squareup.whorlwind;
+
+import android.content.SharedPreferences;
+import androidx.annotation.Nullable;
+import com.squareup.whorlwind.SharedPreferencesStorage.Durability;
+import io.reactivex.schedulers.TestScheduler;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import okio.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE) //
+public final class SharedPreferencesStorageTest {
+  private static final ByteString A = ByteString.encodeUtf8("a");
+  private static final ByteString B = ByteString.encodeUtf8("b");
+
+  private final FaultySharedPreferences prefs = new FaultySharedPreferences();
+  private final TestScheduler scheduler = new TestScheduler();
+
+  private SharedPreferencesStorage storage(Durability durability) {
+    return new SharedPreferencesStorage(null, new SharedPreferences[] { prefs }, "test", durability,
+        100, scheduler);
+  }
+
+  @Test public void writeBehindIsDurableOnceFlushed() throws IOException {
+    SharedPreferencesStorage storage = storage(Durability.WRITE_BEHIND);
+    storage.put("a", A);
+    assertThat(storage.get("a")).isEqualTo(A);
+    assertThat(prefs.crash()).isEmpty();
+
+    storage.put("b", B);
+    storage.flush();
+    assertThat(prefs.crash()).containsExactly("a", A.base64(), "b", B.base64());
+  }
+
+  @Test public void writeBehindPersistsInBackground() {
+    SharedPreferencesStorage storage = storage(Durability.WRITE_BEHIND);
+    storage.put("a", A);
+    storage.put("b", B);
+    prefs.runBackgroundWrites();
+    assertThat(prefs.crash()).containsExactly("a", A.base64(), "b", B.base64());
+  }
+
+  @Test public void syncIsDurableOnReturn() {
+    SharedPreferencesStorage storage = storage(Durability.SYNC);
+    storage.put("a", A);
+    assertThat(prefs.crash()).containsExactly("a", A.base64());
+
+    storage.remove("a");
+    assertThat(prefs.crash()).isEmpty();
+  }
+
+  @Test public void syncFailureThrows() {
+    SharedPreferencesStorage storage = storage(Durability.SYNC);
+    prefs.failCommits = true;
+    try {
+      storage.put("a", A);
+      fail();
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("Failed to write to test");
+    }
+    assertThat(prefs.crash()).isEmpty();
+  }
+
+  @Test public void groupCommitCoalescesWritesWithinWindow() {
+    SharedPreferencesStorage storage = storage(Durability.GROUP_COMMIT);
+    prefs.committed.put("old", A.base64());
+    storage.put("a", A);
+    storage.put("b", B);
+    storage.remove("old");
+    storage.put("a", B);
+
+    // Pending writes are visible before they are committed.
+    assertThat(storage.get("a")).isEqualTo(B);
+    assertThat(storage.get("old")).isNull();
+    assertThat(storage.names()).containsExactly("a", "b");
+    assertThat(prefs.commits).isEqualTo(0);
+
+    scheduler.advanceTimeBy(99, MILLISECONDS);
+    assertThat(prefs.commits).isEqualTo(0);
+
+    scheduler.advanceTimeBy(1, MILLISECONDS);
+    assertThat(prefs.commits).isEqualTo(1);
+    assertThat(prefs.crash()).containsExactly("a", B.base64(), "b", B.base64());
+  }
+
+  @Test public void groupCommitCrashBeforeWindowLosesWholeGroup() {
+    SharedPreferencesStorage storage = storage(Durability.GROUP_COMMIT);
+    storage.put("a", A);
+    scheduler.advanceTimeBy(100, MILLISECONDS);
+
+    storage.put("a", B);
+    storage.put("b", B);
+    // Nothing from the second group is visible on disk, not even partially.
+    assertThat(prefs.crash()).containsExactly("a", A.base64());
+  }
+
+  @Test public void groupCommitFailureKeepsWritesAndRetries() throws IOException {
+    SharedPreferencesStorage storage = storage(Durability.GROUP_COMMIT);
+    prefs.failCommits = true;
+    storage.put("a", A);
+    scheduler.advanceTimeBy(100, MILLISECONDS);
+    assertThat(prefs.crash()).isEmpty();
+    assertThat(storage.get("a")).isEqualTo(A);
+
+    try {
+      storage.flush();
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("Failed to write to test");
+    }
+
+    prefs.failCommits = false;
+    scheduler.advanceTimeBy(100, MILLISECONDS);
+    assertThat(prefs.crash()).containsExactly("a", A.base64());
+  }
+
+  @Test public void groupCommitFlushPersistsImmediately() throws IOException {
+    SharedPreferencesStorage storage = storage(Durability.GROUP_COMMIT);
+    storage.put("a", A);
+    storage.flush();
+    assertThat(prefs.crash()).containsExactly("a", A.base64());
+
+    // The scheduled commit has nothing left to do.
+    scheduler.advanceTimeBy(100, MILLISECONDS);
+    assertThat(prefs.commits).isEqualTo(2);
+  }
+
+  @Test public void groupCommitClearDropsPendingWrites() {
+    SharedPreferencesStorage storage = storage(Durability.GROUP_COMMIT);
+    prefs.committed.put("old", A.base64());
+    storage.put("a", A);
+    storage.clear();
+    assertThat(storage.names()).isEmpty();
+    assertThat(prefs.crash()).isEmpty();
+
+    scheduler.advanceTimeBy(100, MILLISECONDS);
+    assertThat(prefs.crash()).isEmpty();
+  }
+
+  @Test public void prefixAndRangeQueries() {
+    SharedPreferencesStorage storage = storage(Durability.WRITE_BEHIND);
+    storage.put("merchant/2/b", B);
+    storage.put("merchant/1/a", A);
+    storage.put("other", A);
+
+    // The index is built here and maintained incrementally afterwards.
+    assertThat(storage.namesWithPrefix("merchant/")) //
+        .containsExactly("merchant/1/a", "merchant/2/b").inOrder();
+
+    storage.put("merchant/2/a", A);
+    storage.remove("merchant/1/a");
+    assertThat(storage.namesWithPrefix("merchant/2/")) //
+        .containsExactly("merchant/2/a", "merchant/2/b").inOrder();
+    assertThat(storage.namesInRange("merchant/", "other")) //
+        .containsExactly("merchant/2/a", "merchant/2/b").inOrder();
+
+    storage.removeWithPrefix("merchant/");
+    assertThat(storage.names()).containsExactly("other");
+    assertThat(storage.namesWithPrefix("")).containsExactly("other");
+
+    storage.clear();
+    assertThat(storage.namesWithPrefix("")).isEmpty();
+  }
+
+  @Test public void groupCommitPrefixRemovalIsBuffered() {
+    SharedPreferencesStorage storage = storage(Durability.GROUP_COMMIT);
+    storage.put("merchant/1", A);
+    storage.put("merchant/2", B);
+    scheduler.advanceTimeBy(100, MILLISECONDS);
+
+    storage.removeWithPrefix("merchant/");
+    assertThat(storage.namesWithPrefix("merchant/")).isEmpty();
+    assertThat(prefs.crash()).hasSize(2);
+
+    scheduler.advanceTimeBy(100, MILLISECONDS);
+    assertThat(prefs.crash()).isEmpty();
+  }
+
+  @Test public void shardedWriteOnlyRewritesItsShard() {
+    FaultySharedPreferences[] shards = new FaultySharedPreferences[4];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new FaultySharedPreferences();
+    }
+    SharedPreferencesStorage storage =
+        new SharedPreferencesStorage(null, shards, "test", Durability.SYNC, 100, scheduler);
+    for (int i = 0; i < 20; i++) {
+      storage.put("name" + i, A);
+    }
+
+    int commits = 0;
+    Set<String> persisted = new LinkedHashSet<>();
+    for (FaultySharedPreferences shard : shards) {
+      assertThat(shard.committed.size()).isLessThan(20);
+      for (String name : shard.committed.keySet()) {
+        assertThat(persisted.add(name)).isTrue(); // Each name is in exactly one shard.
+      }
+      commits += shard.commits;
+    }
+    assertThat(persisted).hasSize(20);
+    assertThat(commits).isEqualTo(20);
+    assertThat(storage.names()).isEqualTo(persisted);
+    assertThat(storage.get("name7")).isEqualTo(A);
+
+    storage.clear();
+    assertThat(storage.names()).isEmpty();
+    for (FaultySharedPreferences shard : shards) {
+      assertThat(shard.crash()).isEmpty();
+    }
+  }
+
+  @Test public void shardedGroupCommitWritesEachTouchedShardOnce() throws IOException {
+    FaultySharedPreferences[] shards = new FaultySharedPreferences[4];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new FaultySharedPreferences();
+    }
+    SharedPreferencesStorage storage =
+        new SharedPreferencesStorage(null, shards, "test", Durability.GROUP_COMMIT, 100,
+            scheduler);
+    for (int i = 0; i < 20; i++) {
+      storage.put("name" + i, A);
+    }
+    storage.flush();
+
+    for (FaultySharedPreferences shard : shards) {
+      // One group commit, then one commit from flush waiting for earlier applies.
+      assertThat(shard.commits).isEqualTo(shard.committed.isEmpty() ? 1 : 2);
+    }
+    assertThat(storage.names()).hasSize(20);
+  }
+
+  @Test public void syncCommitsToDifferentShardsDontWaitForEachOther() throws Exception {
+    FaultySharedPreferences[] shards =
+        new FaultySharedPreferences[] { new FaultySharedPreferences(),
+            new FaultySharedPreferences() };
+    final SharedPreferencesStorage storage =
+        new SharedPreferencesStorage(null, shards, "test", Durability.SYNC, 100, scheduler);
+    assertThat(storage.namesWithPrefix("")).isEmpty(); // Build the index.
+
+    shards[0].commitGate = new CountDownLatch(1);
+    Thread slow = new Thread(new Runnable() {
+      @Override public void run() {
+        storage.put("b", B); // In shard 0.
+      }
+    });
+    slow.start();
+    assertThat(shards[0].commitEntered.await(10, SECONDS)).isTrue();
+
+    storage.put("a", A); // In shard 1.
+    assertThat(storage.namesWithPrefix("")).containsExactly("a");
+
+    shards[0].commitGate.countDown();
+    slow.join(SECONDS.toMillis(10));
+    assertThat(slow.isAlive()).isFalse();
+    assertThat(storage.namesWithPrefix("")).containsExactly("a", "b").inOrder();
+  }
+
+  @Test public void shardedFilesAreSeparate() {
+    SharedPreferencesStorage storage =
+        new SharedPreferencesStorage(RuntimeEnvironment.application, "sharded", Durability.SYNC,
+            3);
+    storage.put("a", A);
+    storage.put("b", B);
+    storage.put("c", A);
+
+    int stored = 0;
+    for (int i = 0; i < 3; i++) {
+      stored += RuntimeEnvironment.application.getSharedPreferences("sharded." + i, 0)
+          .getAll()
+          .size();
+    }
+    assertThat(stored).isEqualTo(3);
+    assertThat(RuntimeEnvironment.application.getSharedPreferences("sharded", 0).getAll())
+        .isEmpty();
+    assertThat(storage.names()).containsExactly("a", "b", "c");
+  }
+
+  /**
+   * Keeps what a real implementation would have on disk separately from memory. Applied edits only
+   * reach the disk when {@link #runBackgroundWrites()} is called or when a later commit flushes
+   * them, and {@link #crash()} returns what survives the process dying.
+   */
+  static final class FaultySharedPreferences implements SharedPreferences {
+    final Map<String, String> memory = new LinkedHashMap<>();
+    final Map<String, String> committed = new LinkedHashMap<>();
+    private final List<Map<String, String>> backgroundWrites = new ArrayList<>();
+    boolean failCommits;
+    int commits;
+    /** Holds every commit until it is counted down, once {@link #commitEntered} is. */
+    @Nullable CountDownLatch commitGate;
+    final CountDownLatch commitEntered = new CountDownLatch(1);
+
+    Map<String, String> crash() {
+      return new LinkedHashMap<>(committed);
+    }
+
+    void runBackgroundWrites() {
+      for (Map<String, String> snapshot : backgroundWrites) {
+        committed.clear();
+        committed.putAll(snapshot);
+      }
+      backgroundWrites.clear();
+    }
+
+    @Override public Map<String, ?> getAll() {
+      return new LinkedHashMap<>(memory);
+    }
+
+    @Nullable @Override public String getString(String key, @Nullable String defValue) {
+      return memory.containsKey(key) ? memory.get(key) : defValue;
+    }
+
+    @Nullable @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public int getInt(String key, int defValue) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public long getLong(String key, long defValue) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public float getFloat(String key, float defValue) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public boolean getBoolean(String key, boolean defValue) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public boolean contains(String key) {
+      return memory.containsKey(key);
+    }
+
+    @Override public Editor edit() {
+      return new FaultyEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener l) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener l) {
+      throw new UnsupportedOperationException();
+    }
+
+    final class FaultyEditor implements Editor {
+      private final Map<String, String> changes = new LinkedHashMap<>();
+      private boolean clear;
+
+      @Override public Editor putString(String key, @Nullable String value) {
+        changes.put(key, value);
+        return this;
+      }
+
+      @Override public Editor putStringSet(String key, @Nullable Set<String> values) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override public Editor putInt(String key, int value) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override public Editor putLong(String key, long value) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override public Editor putFloat(String key, float value) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override public Editor putBoolean(String key, boolean value) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override public Editor remove(String key) {
+        changes.put(key, null);
+        return this;
+      }
+
+      @Override public Editor clear() {
+        clear = true;
+        return this;
+      }
+
+      private void applyToMemory() {
+        if (clear) {
+          memory.clear();
+        }
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+          if (change.getValue() != null) {
+            memory.put(change.getKey(), change.getValue());
+          } else {
+            memory.remove(change.getKey());
+          }
+        }
+      }
+
+      @Override public boolean commit() {
+        if (commitGate != null) {
+          commitEntered.countDown();
+          try {
+            commitGate.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        }
+        commits++;
+        if (failCommits) {
+          return false;
+        }
+        applyToMemory();
+        // Like the real implementation, a commit writes the whole file including earlier applies.
+        backgroundWrites.clear();
+        committed.clear();
+        committed.putAll(memory);
+        return true;
+      }
+
+      @Override public void apply() {
+        applyToMemory();
+        backgroundWrites.add(Collections.unmodifiableMap(new LinkedHashMap<>(memory)));
+      }
+    }
+  }
+}
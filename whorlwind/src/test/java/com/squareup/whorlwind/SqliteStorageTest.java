@@ -0,0 +1,95 @@
+package com.squareup.whorlwind;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import okio.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE) //
+public final class SqliteStorageTest {
+  private final SqliteStorage storage = new SqliteStorage(RuntimeEnvironment.application, "test");
+
+  @Test public void putGetRemove() {
+    assertThat(storage.get("a")).isNull();
+
+    storage.put("a", ByteString.of((byte) 0, (byte) 1, (byte) 2));
+    assertThat(storage.get("a")).isEqualTo(ByteString.of((byte) 0, (byte) 1, (byte) 2));
+
+    storage.put("a", ByteString.encodeUtf8("replaced"));
+    assertThat(storage.get("a")).isEqualTo(ByteString.encodeUtf8("replaced"));
+
+    storage.remove("a");
+    assertThat(storage.get("a")).isNull();
+  }
+
+  @Test public void clear() {
+    storage.put("a", ByteString.encodeUtf8("a"));
+    storage.put("b", ByteString.encodeUtf8("b"));
+    storage.clear();
+    assertThat(storage.names()).isEmpty();
+  }
+
+  @Test public void namesAreSorted() {
+    storage.put("c", ByteString.encodeUtf8("c"));
+    storage.put("a", ByteString.encodeUtf8("a"));
+    storage.put("b", ByteString.encodeUtf8("b"));
+    assertThat(storage.names()).containsExactly("a", "b", "c").inOrder();
+  }
+
+  @Test public void putAll() {
+    storage.put("a", ByteString.encodeUtf8("old"));
+
+    Map<String, ByteString> values = new LinkedHashMap<>();
+    values.put("a", ByteString.encodeUtf8("a"));
+    values.put("b", ByteString.encodeUtf8("b"));
+    storage.putAll(values);
+
+    assertThat(storage.get("a")).isEqualTo(ByteString.encodeUtf8("a"));
+    assertThat(storage.get("b")).isEqualTo(ByteString.encodeUtf8("b"));
+  }
+
+  @Test public void pagedNames() {
+    for (String name : Arrays.asList("e", "d", "c", "b", "a")) {
+      storage.put(name, ByteString.encodeUtf8(name));
+    }
+
+    assertThat(storage.names(null, 2)).containsExactly("a", "b").inOrder();
+    assertThat(storage.names("b", 2)).containsExactly("c", "d").inOrder();
+    assertThat(storage.names("d", 2)).containsExactly("e");
+    assertThat(storage.names("e", 2)).isEmpty();
+  }
+
+  @Test public void pagedNamesRejectsNonPositiveLimit() {
+    try {
+      storage.names(null, 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("limit <= 0: 0");
+    }
+  }
+
+  @Test public void prefixAndRangeQueries() {
+    for (String name : Arrays.asList("merchant/1/a", "merchant/2/a", "merchant/2/b", "merchant/3",
+        "other")) {
+      storage.put(name, ByteString.encodeUtf8(name));
+    }
+
+    assertThat(storage.namesWithPrefix("merchant/2/")) //
+        .containsExactly("merchant/2/a", "merchant/2/b").inOrder();
+    assertThat(storage.namesWithPrefix("")).hasSize(5);
+    assertThat(storage.namesInRange("merchant/2", "merchant/3")) //
+        .containsExactly("merchant/2/a", "merchant/2/b").inOrder();
+
+    storage.removeWithPrefix("merchant/");
+    assertThat(storage.names()).containsExactly("other");
+  }
+}
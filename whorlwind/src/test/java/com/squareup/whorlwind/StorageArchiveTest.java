@@ -0,0 +1,85 @@
+package com.squareup.whorlwind;
+
+import android.content.SharedPreferences;
+import com.squareup.whorlwind.SharedPreferencesStorage.Durability;
+import com.squareup.whorlwind.SharedPreferencesStorageTest.FaultySharedPreferences;
+import io.reactivex.schedulers.Schedulers;
+import java.io.EOFException;
+import java.io.IOException;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE) //
+public final class StorageArchiveTest {
+  private final MemoryStorage source = new MemoryStorage();
+  private final MemoryStorage destination = new MemoryStorage();
+
+  @Test public void roundTrip() {
+    for (int i = 0; i < 5; i++) {
+      source.put("name" + i, ByteString.encodeUtf8("value" + i));
+    }
+    destination.put("name0", ByteString.encodeUtf8("replaced"));
+    destination.put("other", ByteString.encodeUtf8("kept"));
+
+    Buffer archive = new Buffer();
+    assertThat(new StorageArchive(source).exportTo(archive).blockingGet()).isEqualTo(5);
+    assertThat(new StorageArchive(destination).importFrom(archive).blockingGet()).isEqualTo(5);
+
+    assertThat(archive.size()).isEqualTo(0);
+    assertThat(destination.names()).hasSize(6);
+    for (int i = 0; i < 5; i++) {
+      assertThat(destination.get("name" + i)).isEqualTo(ByteString.encodeUtf8("value" + i));
+    }
+    assertThat(destination.get("other")).isEqualTo(ByteString.encodeUtf8("kept"));
+  }
+
+  @Test public void corruptArchiveIsNotImported() {
+    source.put("a", ByteString.encodeUtf8("aaa"));
+    source.put("b", ByteString.encodeUtf8("bbb"));
+    Buffer archive = new Buffer();
+    new StorageArchive(source).exportTo(archive).blockingGet();
+
+    byte[] bytes = archive.readByteArray();
+    bytes[bytes.length / 2] ^= 1;
+    new StorageArchive(destination).importFrom(new Buffer().write(bytes))
+        .test()
+        .assertError(IOException.class);
+    assertThat(destination.names()).isEmpty();
+  }
+
+  @Test public void truncatedArchiveIsNotImported() {
+    source.put("a", ByteString.encodeUtf8("aaa"));
+    Buffer archive = new Buffer();
+    new StorageArchive(source).exportTo(archive).blockingGet();
+
+    Buffer truncated = new Buffer();
+    archive.copyTo(truncated, 0, archive.size() - 1);
+    new StorageArchive(destination).importFrom(truncated).test().assertError(EOFException.class);
+    assertThat(destination.names()).isEmpty();
+  }
+
+  @Test public void importIsOneWritePerShard() {
+    for (int i = 0; i < 1000; i++) {
+      source.put("name" + i, ByteString.encodeUtf8("value" + i));
+    }
+    Buffer archive = new Buffer();
+    new StorageArchive(source).exportTo(archive).blockingGet();
+
+    FaultySharedPreferences prefs = new FaultySharedPreferences();
+    SharedPreferencesStorage storage =
+        new SharedPreferencesStorage(null, new SharedPreferences[] { prefs }, "test",
+            Durability.SYNC, 100, Schedulers.trampoline());
+    new StorageArchive(storage).importFrom(archive).blockingGet();
+
+    assertThat(prefs.commits).isEqualTo(1);
+    assertThat(storage.names()).hasSize(1000);
+    assertThat(storage.get("name999")).isEqualTo(ByteString.encodeUtf8("value999"));
+  }
+}
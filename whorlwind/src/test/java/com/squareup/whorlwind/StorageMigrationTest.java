@@ -0,0 +1,137 @@
+package com.squareup.whorlwind;
+
+import androidx.annotation.NonNull;
+import io.reactivex.observers.TestObserver;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import okio.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(manifest = Config.NONE) //
+public final class StorageMigrationTest {
+  private final SharedPreferencesStorage source =
+      new SharedPreferencesStorage(RuntimeEnvironment.application, "source");
+  private final SqliteStorage destination =
+      new SqliteStorage(RuntimeEnvironment.application, "destination");
+
+  @Test public void movesEverythingInBatches() {
+    for (int i = 0; i < 5; i++) {
+      source.put("name" + i, ByteString.encodeUtf8("value" + i));
+    }
+
+    TestObserver<StorageMigration.Progress> observer =
+        new StorageMigration(source, destination, 2).migrate().test();
+
+    observer.assertComplete();
+    assertThat(observer.valueCount()).isEqualTo(3);
+    StorageMigration.Progress last = observer.values().get(2);
+    assertThat(last.migrated).isEqualTo(5);
+    assertThat(last.total).isEqualTo(5);
+    assertThat(source.names()).isEmpty();
+    for (int i = 0; i < 5; i++) {
+      assertThat(destination.get("name" + i)).isEqualTo(ByteString.encodeUtf8("value" + i));
+    }
+  }
+
+  @Test public void resumesAfterInterruption() {
+    for (int i = 0; i < 5; i++) {
+      source.put("name" + i, ByteString.encodeUtf8("value" + i));
+    }
+
+    // Stop after the first batch, as if the process died.
+    new StorageMigration(source, destination, 2).migrate().take(1).test().assertComplete();
+    assertThat(source.names()).hasSize(3);
+    assertThat(destination.names()).hasSize(2);
+
+    TestObserver<StorageMigration.Progress> observer =
+        new StorageMigration(source, destination, 2).migrate().test();
+    observer.assertComplete();
+    assertThat(observer.values().get(observer.valueCount() - 1).total).isEqualTo(3);
+    assertThat(source.names()).isEmpty();
+    assertThat(destination.names()).hasSize(5);
+  }
+
+  @Test public void batchesReachStorageBehindDecorators() {
+    for (int i = 0; i < 5; i++) {
+      source.put("name" + i, ByteString.encodeUtf8("value" + i));
+    }
+    CountingBatchStorage batches = new CountingBatchStorage();
+
+    new StorageMigration(source,
+        new BoundedStorage(new CachingStorage(batches, 1024), 100, 1024), 2).migrate()
+        .test()
+        .assertComplete();
+    assertThat(batches.putAlls).isEqualTo(3);
+    assertThat(batches.names()).hasSize(5);
+  }
+
+  @Test public void unverifiedValuesStayInSource() {
+    source.put("a", ByteString.encodeUtf8("value"));
+
+    new StorageMigration(source, new DroppingStorage(), 2).migrate()
+        .test()
+        .assertError(IllegalStateException.class);
+    assertThat(source.get("a")).isEqualTo(ByteString.encodeUtf8("value"));
+  }
+
+  /** Keeps values in memory and counts batches. */
+  private static final class CountingBatchStorage implements BatchStorage {
+    private final MemoryStorage values = new MemoryStorage();
+    int putAlls;
+
+    @Override public void putAll(@NonNull Map<String, ByteString> values) {
+      putAlls++;
+      for (Map.Entry<String, ByteString> entry : values.entrySet()) {
+        this.values.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    @Override public void clear() {
+      values.clear();
+    }
+
+    @Override public void remove(@NonNull String name) {
+      values.remove(name);
+    }
+
+    @Override public void put(@NonNull String name, @NonNull ByteString value) {
+      throw new AssertionError("Expected a batch.");
+    }
+
+    @Override public ByteString get(@NonNull String name) {
+      return values.get(name);
+    }
+
+    @Override public Set<String> names() {
+      return values.names();
+    }
+  }
+
+  /** Accepts writes without storing anything. */
+  private static final class DroppingStorage implements Storage {
+    @Override public void clear() {
+    }
+
+    @Override public void remove(@NonNull String name) {
+    }
+
+    @Override public void put(@NonNull String name, @NonNull ByteString value) {
+    }
+
+    @Override public ByteString get(@NonNull String name) {
+      return null;
+    }
+
+    @Override public Set<String> names() {
+      return Collections.emptySet();
+    }
+  }
+}
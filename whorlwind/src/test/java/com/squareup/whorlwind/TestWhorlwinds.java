@@ -0,0 +1,78 @@
+package com.squareup.whorlwind;
+
+import android.annotation.SuppressLint;
+import io.reactivex.Observable;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.Schedulers;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import org.robolectric.RuntimeEnvironment;
+
+import static android.Manifest.permission.USE_FINGERPRINT;
+import static com.google.common.truth.Truth.assertThat;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Builds {@link RealWhorlwind}s which use a {@link FakeKeyStore} and a
+ * {@link FakeFingerprintSensor}, and reads from them.
+ */
+@SuppressLint("NewApi") //
+final class TestWhorlwinds {
+  /** The key alias of instances built here. */
+  static final String KEY_ALIAS = "test";
+
+  /**
+   * Grants the fingerprint permission and returns a builder for {@code storage} which purges on
+   * the calling thread, so that no storage is read in the background, and which reports decrypted
+   * values without waiting for the main looper.
+   */
+  static Whorlwind.Builder builder(Storage storage) {
+    return builder(new BlockingAsyncStorage(storage));
+  }
+
+  /** @see #builder(Storage) */
+  static Whorlwind.Builder builder(AsyncStorage storage) {
+    shadowOf(RuntimeEnvironment.application).grantPermissions(USE_FINGERPRINT);
+    Whorlwind.Builder builder =
+        new Whorlwind.Builder(RuntimeEnvironment.application, storage, KEY_ALIAS);
+    builder.maintenanceScheduler = Schedulers.trampoline();
+    builder.resultScheduler = Schedulers.trampoline();
+    return builder;
+  }
+
+  static RealWhorlwind create(Whorlwind.Builder builder, FakeFingerprintSensor sensor,
+      FakeKeyStore keyStore) {
+    return new RealWhorlwind(builder, sensor.fingerprintManager, keyStore.registry());
+  }
+
+  static RealWhorlwind create(Storage storage, FakeFingerprintSensor sensor,
+      FakeKeyStore keyStore) {
+    return create(builder(storage), sensor, keyStore);
+  }
+
+  /** Waits for {@code read} to finish without an error and returns its last result. */
+  static ReadResult lastResult(Observable<ReadResult> read) throws InterruptedException {
+    TestObserver<ReadResult> observer = read.test();
+    assertThat(observer.await(10, TimeUnit.SECONDS)).isTrue();
+    observer.assertNoErrors();
+    List<ReadResult> results = observer.values();
+    return results.get(results.size() - 1);
+  }
+
+  /** Like {@link #lastResult}, and also checks that {@code read} finished ready. */
+  static ReadResult readyResult(Observable<ReadResult> read) throws InterruptedException {
+    ReadResult last = lastResult(read);
+    assertThat(last.readState).isEqualTo(ReadResult.ReadState.READY);
+    return last;
+  }
+
+  /** Returns the value {@code read} finished ready with. */
+  static ByteString readValue(Observable<ReadResult> read) throws InterruptedException {
+    return readyResult(read).value;
+  }
+
+  private TestWhorlwinds() {
+    throw new AssertionError("No instances.");
+  }
+}